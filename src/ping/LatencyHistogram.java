@@ -0,0 +1,133 @@
+package ping;
+
+/**
+ * Round trip times accumulated into log-linear buckets, in the manner of an
+ * HDR histogram: each power of two range of microseconds is split into 64
+ * equal buckets, so any value is held to within about 1.5%, from 1us up to
+ * MAX_MICROS (larger values count as MAX_MICROS). Recording doesn't
+ * allocate, and histograms from different hops or runs can be merged.
+ * Also keeps the exact count, min, max and total, and the jitter as the
+ * mean difference between consecutive samples.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_BITS = 27;
+    public static final long MAX_MICROS = (1L << MAX_BITS) - 1;  // about 134s
+    private static final int BUCKETS = 2 * SUB + (MAX_BITS - SUB_BITS - 1) * SUB;
+
+    private int[] counts;   // allocated on the first sample
+    private long count;
+    private double min = Double.MAX_VALUE;
+    private double max = 0.0;
+    private double total = 0.0;
+    private double last = Double.NaN;
+    private double deltaTotal = 0.0;
+    private long deltas;
+
+    /** Add a round trip time in ms. */
+    public void record(double ms) {
+        if (ms < 0 || Double.isNaN(ms)) {
+            return;
+        }
+        if (counts == null) {
+            counts = new int[BUCKETS];
+        }
+        counts[index(Math.min(MAX_MICROS, Math.round(ms * 1000.0)))]++;
+        count++;
+        min = Math.min(min, ms);
+        max = Math.max(max, ms);
+        total += ms;
+        if (!Double.isNaN(last)) {
+            deltaTotal += Math.abs(ms - last);
+            deltas++;
+        }
+        last = ms;
+    }
+
+    /** Add another histogram's samples to this one. */
+    public void merge(LatencyHistogram h) {
+        if (h.count == 0) {
+            return;
+        }
+        if (counts == null) {
+            counts = new int[BUCKETS];
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += h.counts[i];
+        }
+        count += h.count;
+        min = Math.min(min, h.min);
+        max = Math.max(max, h.max);
+        total += h.total;
+        deltaTotal += h.deltaTotal;
+        deltas += h.deltas;
+        last = h.last;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Smallest time in ms, 0 if none. */
+    public double getMin() {
+        return count == 0 ? 0.0 : min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0.0 : total / count;
+    }
+
+    /** Mean difference between consecutive times, in ms. */
+    public double getJitter() {
+        return deltas == 0 ? 0.0 : deltaTotal / deltas;
+    }
+
+    /**
+     * The time in ms that percent of the samples are at or below, e.g. 95.0,
+     * to the precision of the buckets. 0 if there are no samples.
+     */
+    public double getPercentile(double percent) {
+        if (count == 0) {
+            return 0.0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percent / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                double ms = middle(i) / 1000.0;
+                return Math.max(min, Math.min(max, ms));
+            }
+        }
+        return max;
+    }
+
+    /** Bucket of a value in microseconds. */
+    private static int index(long us) {
+        if (us < 2 * SUB) {
+            return (int) us;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(us);   // >= SUB_BITS + 1
+        int shift = magnitude - SUB_BITS;
+        int sub = (int) (us >> shift);                       // SUB .. 2 * SUB - 1
+        return 2 * SUB + (magnitude - SUB_BITS - 1) * SUB + (sub - SUB);
+    }
+
+    /** Middle of a bucket, in microseconds. */
+    private static double middle(int index) {
+        if (index < 2 * SUB) {
+            return index;
+        }
+        int magnitude = (index - 2 * SUB) / SUB + SUB_BITS + 1;
+        int sub = (index - 2 * SUB) % SUB + SUB;
+        int shift = magnitude - SUB_BITS;
+        long low = (long) sub << shift;
+        return low + ((1L << shift) - 1) / 2.0;
+    }
+}
@@ -4,6 +4,8 @@ package ping;
  * PingStats.java
  * Calculates ping stats from a traceroute output line.
  * Used to convert traceroute output to ping details for vcms.
+ * Times are kept as doubles and in a LatencyHistogram, which gives the
+ * percentiles and jitter, and can be merged across hops or runs.
  */
 import java.net.InetAddress;
 import java.util.*;
@@ -14,7 +16,9 @@ import java.util.*;
 
 public class PingStats {
     private String [] vals;
-    private Vector pings = new Vector(); // returnable list of stats
+    private double [] times = new double[4]; // the ping times...
+    private String [] texts = new String[4]; // ...and how they were written, if they were
+    private final LatencyHistogram histogram = new LatencyHistogram();
     // declare and initialise stats
     private double minVal = 9999.9999; // big for initial min compare
     private double maxVal = 0.0;
@@ -39,9 +43,10 @@ public class PingStats {
             if (vals[i].trim().length() == 0) continue; // ignore empty/blank lines
             // try and process the entry as a number first since there are more
             // of them than anything else.
-            try{
-                processValue(vals[i]);
-            }catch(NumberFormatException nfe){
+            double dVal = parseNumber(vals[i]);
+            if (!Double.isNaN(dVal)){
+                processValue(dVal, vals[i]);
+            }else{
                 // not a number so could be :-
                 //  * a dropped packet
                 // !<c> an error code (treat as dropped packet)
@@ -52,25 +57,13 @@ public class PingStats {
                     vals[i].indexOf("!") != -1){
                     setNumLost(getNumLost() + 1);
                 }else if (vals[i].trim().equals("<1")){
-                    processValue("0.5"); // on av it will be OK (windows anyway)
+                    processValue(0.5, "0.5"); // on av it will be OK (windows anyway)
                 }else if (vals[i].trim().equals(targetIp)){
-                    try{
-                        setIpAddress(vals[i]);
-                    }catch(Exception e){
-                        setIpAddress(null);
-                    }
+                    setIpAddress(vals[i]);
                 }
             }
         }
-        // if we didn't have any valid values then set the min to 0.
-        // (it was initialised to abig number for the min test!!! one solution!)
-
-        if (getNumVals() == 0) setMinVal(0.0);
-        
-        // calculate summary stats.
-        setAvVal(rounder(getTotVal() / getNumVals(),3));
-        setLostPercent(rounder(((double)getNumLost() /(double) (getNumVals() +
-                                             getNumLost())) * 100.0,1));
+        summarise();
         /*
          * traceroute on unix returns n * line if host not reached so have to
          * handle
@@ -82,21 +75,128 @@ public class PingStats {
     }
 
     /**
-     * pull out of recurring code to try and process a number value
+     * Creates a new instance of PingStats from round trip times already
+     * measured, e.g. by the ProbeEngine.
+     * @param targetIp the ip address of the ping target
+     * @param times the round trip times of the replies, in ms
+     * @param lost the number of probes with no reply
+     */
+    public PingStats(String targetIp, double[] times, int lost) {
+        setVals(new String[0]);
+        setIpAddress(targetIp);
+        for (int i=0;i<times.length;i++){
+            processValue(rounder(times[i],3), null);
+        }
+        setNumLost(lost);
+        summarise();
+    }
+
+    /**
+     * Add the times and losses of another PingStats (another hop, or another
+     * run to the same target) to these.
      */
-    private void  processValue(String val) throws NumberFormatException
+    public void merge(PingStats other) {
+        for (int i=0;i<other.numVals;i++){
+            processValue(other.times[i], other.texts[i]);
+        }
+        setNumLost(getNumLost() + other.getNumLost());
+        summarise();
+    }
+
+    /**
+     * calculate the summary stats once the values are in.
+     */
+    private void summarise()
     {
-      double dVal = 0.0;
-      dVal = Double.valueOf(val).doubleValue(); //try convert string to double
+        // if we didn't have any valid values then set the min to 0.
+        // (it was initialised to abig number for the min test!!! one solution!)
+
+        if (getNumVals() == 0) setMinVal(0.0);
+        
+        // calculate summary stats.
+        setAvVal(rounder(getTotVal() / getNumVals(),3));
+        setLostPercent(rounder(((double)getNumLost() /(double) (getNumVals() +
+                                             getNumLost())) * 100.0,1));
+    }
 
-      // got a  double so adjust stats accordingly
+    /**
+     * pull out of recurring code to process a number value
+     * @param text the value as written, or null
+     */
+    private void  processValue(double dVal, String text)
+    {
+      // adjust stats accordingly
       
       setMinVal(Math.min(dVal, getMinVal()));
       setMaxVal(Math.max(dVal, getMaxVal()));
       setTotVal(getTotVal() + dVal);
-      setNumVals(getNumVals() + 1);
+      histogram.record(dVal);
       // keep the number for external use
-      pings.add(val);
+      if (numVals == times.length)
+      {
+        times = grow(times);
+        String [] t = new String[texts.length * 2];
+        System.arraycopy(texts, 0, t, 0, texts.length);
+        texts = t;
+      }
+      times[numVals] = dVal;
+      texts[numVals] = text;
+      setNumVals(getNumVals() + 1);
+    }
+
+    private static double[] grow(double[] a)
+    {
+      double [] n = new double[a.length * 2];
+      System.arraycopy(a, 0, n, 0, a.length);
+      return n;
+    }
+
+    /**
+     * Parse a plain decimal number such as "12" or "0.512", ignoring
+     * surrounding blanks, without throwing. Returns NaN if it isn't one.
+     */
+    public static double parseNumber(String s)
+    {
+      int start = 0;
+      int end = s.length();
+      while (start < end && s.charAt(start) <= ' ') start++;
+      while (end > start && s.charAt(end - 1) <= ' ') end--;
+      boolean negative = false;
+      if (start < end && (s.charAt(start) == '-' || s.charAt(start) == '+'))
+      {
+        negative = s.charAt(start) == '-';
+        start++;
+      }
+      double whole = 0.0;
+      double scale = 0.0;   // 0 until the point, then the place value
+      int digits = 0;
+      for (int i = start; i < end; i++)
+      {
+        char c = s.charAt(i);
+        if (c >= '0' && c <= '9')
+        {
+          if (scale == 0.0)
+          {
+            whole = whole * 10.0 + (c - '0');
+          }else
+          {
+            whole += (c - '0') * scale;
+            scale /= 10.0;
+          }
+          digits++;
+        }else if (c == '.' && scale == 0.0)
+        {
+          scale = 0.1;
+        }else
+        {
+          return Double.NaN;
+        }
+      }
+      if (digits == 0)
+      {
+        return Double.NaN;
+      }
+      return negative ? -whole : whole;
     }
 
     /**
@@ -122,13 +222,52 @@ public class PingStats {
                 "Average = "+Double.toString(getAvVal())+"ms\n";
     }
 
+    /**
+     * The percentiles and jitter, for latency reporting, e.g.
+     * "    p50 = 1.2ms, p95 = 3.4ms, p99 = 5.6ms, Jitter = 0.7ms"
+     */
+    public String toPercentileString(){
+        return "    p50 = "+Double.toString(rounder(getPercentile(50.0),3))+"ms, "+
+                "p95 = "+Double.toString(rounder(getPercentile(95.0),3))+"ms, "+
+                "p99 = "+Double.toString(rounder(getPercentile(99.0),3))+"ms, "+
+                "Jitter = "+Double.toString(rounder(getJitter(),3))+"ms\n";
+    }
+
+    /** The time in ms that percent of the replies were at or below. */
+    public double getPercentile(double percent) {
+        return histogram.getPercentile(percent);
+    }
+
+    /** Mean difference between consecutive reply times, in ms. */
+    public double getJitter() {
+        return histogram.getJitter();
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
     /*
      * get and sets....
      */
+    /** The ping times as written in the traceroute line. */
     public Vector getPings()
     {
+      Vector pings = new Vector(numVals);
+      for (int i=0;i<numVals;i++)
+      {
+        pings.add(texts[i] != null ? texts[i] : Double.toString(times[i]));
+      }
       return pings;
     }
+
+    /** The ping times in ms. */
+    public double[] getTimes()
+    {
+      double [] t = new double[numVals];
+      System.arraycopy(times, 0, t, 0, numVals);
+      return t;
+    }
     
     public String[] getVals() {
         return vals;
@@ -0,0 +1,342 @@
+package ping;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pings from inside the JVM instead of forking ping or traceroute. A probe
+ * is either a TCP connect, timed from the SYN to the answer (a refused
+ * connection still proves the host is up), or an ICMP echo through
+ * InetAddress.isReachable where the JVM is allowed to send them.
+ * TCP probes for every run are multiplexed on the one engine thread; as
+ * isReachable blocks, ICMP probes are made on a small pool and their results
+ * handed back to the engine thread.
+ * The output looks like that of TraceRoutePingConverter: a header, a Reply
+ * line per answer and the PingStats summary. Runs can instead hand their
+ * PingStats to a Listener, for monitoring.
+ */
+public class ProbeEngine implements Runnable {
+
+    public static final int TCP = 0;
+    public static final int ICMP = 1;
+
+    private static final int ICMP_THREADS = 8;
+    private static final int PACKET_SIZE = 40;  // as reported by the converter
+    private static final int TTL = 30;
+
+    private static ProbeEngine instance;
+
+    /** Told the result of a run started by probe(). */
+    public interface Listener {
+        /** Called on the engine thread, so must not block. */
+        public void done(String target, PingStats stats);
+    }
+
+    private final Selector selector;
+    private final PriorityQueue timers = new PriorityQueue();
+    private final ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+    private final ExecutorService icmpPool;
+    private long timerSeq;
+
+    /** Something to run on the engine thread at a time. */
+    private static class Timer implements Comparable {
+        final long due;
+        final long seq;
+        final Runnable task;
+        boolean cancelled;
+
+        Timer(long due, long seq, Runnable task) {
+            this.due = due;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        public int compareTo(Object o) {
+            Timer t = (Timer) o;
+            if (due != t.due) {
+                return due < t.due ? -1 : 1;
+            }
+            return seq < t.seq ? -1 : seq == t.seq ? 0 : 1;
+        }
+    }
+
+    private ProbeEngine() throws IOException {
+        selector = Selector.open();
+        icmpPool = Executors.newFixedThreadPool(ICMP_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProbeEngine ICMP");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** The shared engine, started on first use. */
+    public static synchronized ProbeEngine getInstance() throws IOException {
+        if (instance == null) {
+            instance = new ProbeEngine();
+            Thread t = new Thread(instance, "ProbeEngine");
+            t.setDaemon(true);
+            t.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Start a ping run, returning its output.
+     * @param target address to probe
+     * @param source local address to probe from, null for any
+     * @param method TCP or ICMP
+     * @param port the port TCP probes connect to
+     * @param count probes to make
+     * @param timeout ms to wait for each answer
+     * @param interval ms from one probe to the next
+     */
+    public InputStream ping(String target, String source, int method, int port,
+                            int count, int timeout, int interval) throws IOException {
+        InetAddress dst = InetAddress.getByName(target);
+        InetAddress src = source == null ? null : InetAddress.getByName(source);
+        final Run run = new Run(dst, src, method, port, count, timeout, interval, null);
+        run.out.write(header(dst.getHostAddress()));
+        execute(new Runnable() {
+            public void run() {
+                run.probe();
+            }
+        });
+        return run.out;
+    }
+
+    /**
+     * Start a ping run with no output, the listener being given its
+     * PingStats at the end. Parameters as for ping().
+     */
+    public void probe(String target, String source, int method, int port, int count,
+                      int timeout, int interval, Listener listener) throws IOException {
+        InetAddress dst = InetAddress.getByName(target);
+        InetAddress src = source == null ? null : InetAddress.getByName(source);
+        final Run run = new Run(dst, src, method, port, count, timeout, interval, listener);
+        execute(new Runnable() {
+            public void run() {
+                run.probe();
+            }
+        });
+    }
+
+    /** The first line of ping output. */
+    public static String header(String target) {
+        return "Pinging " + target + " with " + PACKET_SIZE + " bytes of data :\n\n";
+    }
+
+    /** The ping output line for one answer. */
+    public static String reply(String target, double ms) {
+        return "Reply from " + target + ": bytes = " + PACKET_SIZE
+               + " time=" + PingStats.rounder(ms, 3) + "ms TTL=" + TTL + "\n";
+    }
+
+    /** Run a task on the engine thread. */
+    private void execute(Runnable r) {
+        tasks.add(r);
+        selector.wakeup();
+    }
+
+    /** Must be called on the engine thread. */
+    private Timer schedule(long delay, Runnable r) {
+        Timer t = new Timer(System.currentTimeMillis() + delay, timerSeq++, r);
+        timers.add(t);
+        return t;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                long wait = 0;
+                Timer next = (Timer) timers.peek();
+                if (next != null) {
+                    wait = Math.max(1, next.due - System.currentTimeMillis());
+                }
+                if (tasks.isEmpty()) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = (SelectionKey) i.next();
+                    i.remove();
+                    ((Run) key.attachment()).connectDone(key);
+                }
+                Runnable r;
+                while ((r = (Runnable) tasks.poll()) != null) {
+                    r.run();
+                }
+                long now = System.currentTimeMillis();
+                while ((next = (Timer) timers.peek()) != null && next.due <= now) {
+                    timers.poll();
+                    if (!next.cancelled) {
+                        next.task.run();
+                    }
+                }
+            } catch (Exception ex) {
+                // one bad probe mustn't stop the engine
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /** One ping run: count probes, one at a time. Used on the engine thread. */
+    private class Run {
+        final InetAddress dst;
+        final InetAddress src;
+        final int method;
+        final int port;
+        final int count;
+        final int timeout;
+        final int interval;
+        final ProbeOutput out;       // null when there is a listener
+        final Listener listener;
+        final double[] times;
+        int replies;
+        int lost;
+        int sent;
+        long sentAt;        // nanoTime of the current probe
+        SocketChannel ch;   // of the current TCP probe
+        Timer timer;        // timeout of the current TCP probe
+
+        Run(InetAddress dst, InetAddress src, int method, int port,
+            int count, int timeout, int interval, Listener listener) {
+            this.dst = dst;
+            this.src = src;
+            this.method = method;
+            this.port = port;
+            this.count = count;
+            this.timeout = timeout;
+            this.interval = interval;
+            this.listener = listener;
+            out = listener == null ? new ProbeOutput() : null;
+            times = new double[count];
+        }
+
+        /** Send the next probe, or finish. */
+        void probe() {
+            if (sent == count || (out != null && out.isClosed())) {
+                PingStats stats = new PingStats(dst.getHostAddress(), replyTimes(), lost);
+                if (out != null) {
+                    out.write("\n" + stats.toString());
+                    out.finish();
+                } else {
+                    listener.done(dst.getHostAddress(), stats);
+                }
+                return;
+            }
+            sent++;
+            sentAt = System.nanoTime();
+            if (method == ICMP) {
+                icmpPool.execute(new Runnable() {
+                    public void run() {
+                        final boolean ok = isReachable();
+                        final long done = System.nanoTime();
+                        execute(new Runnable() {
+                            public void run() {
+                                answered(ok, done);
+                            }
+                        });
+                    }
+                });
+                return;
+            }
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                if (src != null) {
+                    ch.socket().bind(new InetSocketAddress(src, 0));
+                }
+                if (ch.connect(new InetSocketAddress(dst, port))) {
+                    closeChannel();
+                    answered(true, System.nanoTime());
+                    return;
+                }
+                ch.register(selector, SelectionKey.OP_CONNECT, this);
+                timer = schedule(timeout, new Runnable() {
+                    public void run() {
+                        closeChannel();
+                        answered(false, System.nanoTime());
+                    }
+                });
+            } catch (IOException ex) {
+                closeChannel();
+                answered(false, System.nanoTime());
+            }
+        }
+
+        /** The current TCP probe connected or failed. */
+        void connectDone(SelectionKey key) {
+            if (key.channel() != ch) {
+                return;  // already timed out
+            }
+            long done = System.nanoTime();
+            boolean ok;
+            try {
+                ok = ch.finishConnect();
+            } catch (ConnectException ex) {
+                // refused (an RST), so the host answered; unreachable is a NoRouteToHostException
+                ok = true;
+            } catch (IOException ex) {
+                ok = false;
+            }
+            if (timer != null) {
+                timer.cancelled = true;
+            }
+            closeChannel();
+            answered(ok, done);
+        }
+
+        private boolean isReachable() {
+            try {
+                NetworkInterface ni = src == null ? null : NetworkInterface.getByInetAddress(src);
+                return dst.isReachable(ni, 0, timeout);
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        private void answered(boolean ok, long doneNanos) {
+            if (ok) {
+                double ms = (doneNanos - sentAt) / 1000000.0;
+                times[replies++] = ms;
+                if (out != null) {
+                    out.write(reply(dst.getHostAddress(), ms));
+                }
+            } else {
+                lost++;
+            }
+            long wait = interval - (doneNanos - sentAt) / 1000000;
+            if (wait <= 0 || sent == count) {
+                probe();
+            } else {
+                schedule(wait, new Runnable() {
+                    public void run() {
+                        probe();
+                    }
+                });
+            }
+        }
+
+        private double[] replyTimes() {
+            double[] t = new double[replies];
+            System.arraycopy(times, 0, t, 0, replies);
+            return t;
+        }
+
+        private void closeChannel() {
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                }
+                ch = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ping;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+/**
+ * The output of one probe run, written by the ProbeEngine thread and read
+ * by the relay. Reads block until there is output or the run is over;
+ * writes never block, the output of a run being small.
+ */
+class ProbeOutput extends InputStream {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private byte[] buf = new byte[512];
+    private int start;
+    private int end;
+    private boolean finished;
+    private volatile boolean closed;
+
+    /** Add a line of output, from the engine. */
+    void write(String s) {
+        byte[] b = s.getBytes();
+        lock.lock();
+        try {
+            if (end + b.length > buf.length) {
+                byte[] n = new byte[Math.max(buf.length, (end - start + b.length) * 2)];
+                System.arraycopy(buf, start, n, 0, end - start);
+                end -= start;
+                start = 0;
+                buf = n;
+            }
+            System.arraycopy(b, 0, buf, end, b.length);
+            end += b.length;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** No more output, from the engine. */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** True once the reader has closed the stream, so the run can stop. */
+    boolean isClosed() {
+        return closed;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (start == end && !finished && !closed) {
+                try {
+                    ready.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (start == end) {
+                return -1;
+            }
+            int n = Math.min(len, end - start);
+            System.arraycopy(buf, start, b, off, n);
+            start += n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int available() {
+        lock.lock();
+        try {
+            return end - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -4,143 +4,263 @@ package ping;
  * Provides a wrapper for an InputStream to convert the output of
  * a traceroute to look like a ping.
  * OK not nice but Ping doesn't work on the vCMS platform.
+ * The traceroute output and error output (where unix traceroute puts its
+ * header line) are each read by a thread of their own into one bounded
+ * queue of lines, so whichever stream the header turns up on it is seen
+ * straight away, and ping output is produced as soon as the target's hop
+ * line arrives. Memory is bounded: lines are cut at MAX_LINE bytes, the
+ * queue holds QUEUED lines and only the output not yet read is kept.
+ * Closing the converter closes both streams, which ends the readers.
  */
-import common.Constants;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import common.IoUtil;
 import ping.PingStats;
 
-public class TraceRoutePingConverter extends InputStream 
+public class TraceRoutePingConverter extends InputStream
 {
-  private BufferedReader trIn;
-  private BufferedReader trErr;
+  private static final int MAX_LINE = 1024;
+  private static final int QUEUED = 64;
+  private static final String EOF = new String("EOF"); // marks the end of the output
+  private static final String EOF_ERR = new String("EOF_ERR"); // and of the error output
+
+  private final BlockingQueue lines = new ArrayBlockingQueue(QUEUED);
+  private final InputStream trIn;
+  private final InputStream trErr;
+  private int openStreams;
+  private boolean errOpen;
+  private volatile boolean closed = false;
   // extracted detail storage
   private InetAddress ipAddress = null;
   private int savedTTL = 30;
   private int savedPacketSize = 40;
   //flow control
-  private boolean inStreamEmpty = false;
   private boolean doneFirstLine = false;
-  // buffer for output
-  private Vector outList = new Vector();
-  // output control
-  private int nextOutLine = 0;
-  private int retLen = 0;
+  // output not yet read
+  private byte[] out = new byte[0];
+  private int outPos = 0;
+  private final StringBuffer sb = new StringBuffer();
+  private final List early = new ArrayList(); // hop lines read before the header
 
-  // constants
-  private static final int OUT_BUFF_EMPTY = -2;
-  
   /**
    * Construct a new instance of TraceRoutePingConverter
    * @param trIn InputStream fromtraceroute process (hopefully!)
+   * @param trErr the error output of the process, may be null
    */
-  public TraceRoutePingConverter(InputStream trIn, BufferedReader trErr)
+  public TraceRoutePingConverter(final InputStream trIn, final InputStream trErr)
+  {
+    this.trIn = trIn;
+    this.trErr = trErr;
+    openStreams = trErr == null ? 1 : 2;
+    errOpen = trErr != null;
+    startReader("TraceRoute out", new Runnable()
+    {
+      public void run()
+      {
+        readLines(trIn, EOF);
+      }
+    });
+    if (trErr != null)
+    {
+      startReader("TraceRoute err", new Runnable()
+      {
+        public void run()
+        {
+          readLines(trErr, EOF_ERR);
+        }
+      });
+    }
+  }
+
+  private static void startReader(String name, Runnable r)
   {
-     // wrap a buffered reader round the stream for easy usage (or lazy usage)
-      this.trIn= new BufferedReader(new InputStreamReader(trIn));
-      this.trErr= trErr;
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    t.start();
   }
+
   /**
-   * have to provide this but don't want to support it so please don't use it
+   * Split the byte stream into lines, cutting any over MAX_LINE, then
+   * queue the end marker.
    */
-  public int read() throws IOException{
-    return 0;
+  private void readLines(InputStream in, String end)
+  {
+    byte[] buf = new byte[4096];
+    byte[] line = new byte[MAX_LINE];
+    int len = 0;
+    try
+    {
+      int n;
+      while (!closed && (n = in.read(buf)) != -1)
+      {
+        for (int i = 0; i < n; i++)
+        {
+          byte c = buf[i];
+          if (c == '\n')
+          {
+            queue(new String(line, 0, len));
+            len = 0;
+          }else if (c != '\r' && len < MAX_LINE)
+          {
+            line[len++] = c;
+          }
+        }
+      }
+      if (len > 0)
+      {
+        queue(new String(line, 0, len));
+      }
+    }catch (IOException ex)
+    {
+      // treat as the end of the stream
+    }finally
+    {
+      queue(end);
+    }
+  }
+
+  private void queue(String line)
+  {
+    try
+    {
+      // blocks the process when the reader falls behind
+      while (!closed && !lines.offer(line, 1, TimeUnit.SECONDS))
+      {
+      }
+    }catch (InterruptedException ie)
+    {
+    }
   }
+
+  public int read() throws IOException
+  {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
   /**
    * Over ride of super method where all the work happens.
-   * There are three phases :- read, process and send
-   * The read phase fishes for lines we are interested in
-   * The process phase strips the data out
-   * The send phase returns the next available line of ping output.
+   * Lines are taken from the queue and converted until there is some ping
+   * output to return, or both streams have ended.
    */
-  public int read(byte[] b) throws IOException
-  { 
-    String inLine = null;
-    // read phase will only exit when a non empty line is read or
-    // the stream has been emptied. (read null)
-    do {
-      /*
-       * would you beleive that on unix traceroute outputs the header line
-       * on standard err! so we have to pull it out specially!!!!!!!!!!:-(
-       * dont want to block on it incase it varies from unix to unix so
-       * will give it a sec, test it, then move on if there is none
-       */
-      if (!doneFirstLine && Constants.runningPlatform.equals("UNIX"))
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+    while (outPos == out.length)
+    {
+      String inLine;
+      if (!early.isEmpty() && (doneFirstLine || !errOpen))
+      {
+        // header seen (or no longer coming), so these can go now
+        inLine = (String) early.remove(0);
+      }else if (openStreams == 0 || closed)
+      {
+        return -1;
+      }else
       {
         try
-          {
-            Thread.currentThread().sleep(3000);
-          }catch(Exception e)
-          {
-            e.printStackTrace();
-          }
-        if (trErr.ready()){
-          inLine = trErr.readLine();
-        }else
         {
-          do {
-            inLine = trIn.readLine();
-          } while (inLine != null && inLine.trim().length() == 0 ); 
-          if (inLine == null) inStreamEmpty = true; // if nothing else to read 
-            
+          inLine = (String) lines.take();
+        }catch (InterruptedException ie)
+        {
+          throw new InterruptedIOException();
         }
-      }else if (!inStreamEmpty) {
-        do {
-         inLine = trIn.readLine();
-        } while (inLine != null && inLine.trim().length() == 0 ); 
-        if (inLine == null) inStreamEmpty = true; // if nothing else to read 
-      } //!inStreamEmpty
+      }
+      if (inLine == EOF || inLine == EOF_ERR)
+      {
+        openStreams--;
+        errOpen &= inLine != EOF_ERR;
+      }else if (inLine.trim().length() == 0)
+      {
+        continue;
+      }else if (!doneFirstLine && isHopLine(inLine) && errOpen && early.size() < QUEUED)
+      {
+        // a hop line on the output beat the header on the error output
+        early.add(inLine);
+      }else if (!process(inLine))
+      {
+        return -1; // we haven't found an IP adress so give up
+      }
+    }
+    int n = Math.min(len, out.length - outPos);
+    System.arraycopy(out, outPos, b, off, n);
+    outPos += n;
+    return n;
+  }
 
-      // process phase only if we have something to proces
+  public int available()
+  {
+    return out.length - outPos;
+  }
+
+  public void close() throws IOException
+  {
+    closed = true;
+    lines.clear();
+    IoUtil.close(trIn);
+    IoUtil.close(trErr);
+  }
 
-      if (inLine != null)
+  /**
+   * Convert a line to ping output, if it gives any.
+   * Returns false if the first line has no target IP.
+   */
+  private boolean process(String inLine)
+  {
+    sb.setLength(0);
+    //first line needs the IP stripped and maybe packet size and ttl
+    if (!doneFirstLine)
+    {
+      processFirstLine(inLine);
+      doneFirstLine = true;
+      if (ipAddress == null)
       {
-        //first line needs the IP stripped and maybe packet size and ttl
-        if (!doneFirstLine)
+        return false;
+      }
+      // successfully processed the first line so build a ping header line
+      sb.append("Pinging ").append(ipAddress.getHostAddress()).append(" with ")
+        .append(savedPacketSize).append(" bytes of data :\n\n");
+    }else // not the first line so must be a trace line so proces.
+    {
+      String [] trLine = IoUtil.stringSplitter(inLine.trim()," ");
+      if (trLine.length > 3) { // ignore fluff and pad lines
+        // strip out the stats
+        PingStats ps = new PingStats(trLine,ipAddress.getHostAddress());
+        // we are only interested in the stats if it is for oiur target, and
+        // the stats only record the ip for our target;
+        if (ps.getIpAddress()!= null)
         {
-          processFirstLine(inLine);
-          doneFirstLine = true;
-          if (ipAddress == null)
+          Vector pings = ps.getPings();
+          for (int i=0;i<pings.size();i++)
           {
-            return -1; // we haven't found an IP adress so give up
-          }else
-          {
-            // successfully processed the first line so build a ping header line
-            // and send to output buffer.
-            addOutLine("Pinging "+ipAddress.getHostAddress()+" with "+
-                        savedPacketSize+
-                         " bytes of data :\n\n");
-          }
-        }else // not the first line so must be a trace line so proces.
-        {
-          String [] trLine = IoUtil.stringSplitter(inLine.trim()," ");
-          if (trLine.length > 3) { // ignore fluff and pad lines
-            // strip out the stats
-            PingStats ps = new PingStats(trLine,ipAddress.getHostAddress());
-            // we are only interested in the stats if it is for oiur target, and
-            // the stats only record the ip for our target;
-            if (ps.getIpAddress()!= null)
-            {
-              Vector pings = ps.getPings();
-              for (int i=0;i<pings.size();i++)
-              {
-                addOutLine("Reply from "+ipAddress.getHostAddress()+
-                             ": bytes = "+ savedPacketSize+
-                              " time="+(String)pings.get(i)+"ms"+
-                              " TTL="+savedTTL+"\n");
-              }
-              addOutLine("\n"+ps.toString());
-            }
+            sb.append("Reply from ").append(ipAddress.getHostAddress())
+              .append(": bytes = ").append(savedPacketSize)
+              .append(" time=").append((String)pings.get(i)).append("ms")
+              .append(" TTL=").append(savedTTL).append("\n");
           }
+          sb.append("\n").append(ps.toString());
         }
       }
-      // send phase
-      retLen = sendOutLine(b);
-    } while(retLen == OUT_BUFF_EMPTY); // block if nothing in the buffer
-    
-    return retLen; 
+    }
+    if (sb.length() > 0)
+    {
+      out = sb.toString().getBytes();
+      outPos = 0;
+    }
+    return true;
+  }
+
+  /** True if the line starts with a hop number. */
+  private static boolean isHopLine(String line)
+  {
+    String t = line.trim();
+    return Character.isDigit(t.charAt(0)) && t.indexOf(' ') != -1
+           && t.substring(0, t.indexOf(' ')).indexOf('.') == -1;
   }
 
   /**
@@ -152,7 +272,7 @@ public class TraceRoutePingConverter extends InputStream
   {
     boolean haveNumber = false;
     int ourNumber = 0;
-    
+
     String [] tokens = IoUtil.stringSplitter(firstLine, " ");
     // scan through the tokens and pick out the target IP and if poss
     // the packet size and ttl values
@@ -179,7 +299,7 @@ public class TraceRoutePingConverter extends InputStream
         haveNumber = false;
         continue tokenPass;
       }else if (haveNumber && (tokens[i].trim().equalsIgnoreCase("byte")|
-                               tokens[i].trim().equalsIgnoreCase("byte"))) 
+                               tokens[i].trim().equalsIgnoreCase("bytes")))
       {
         savedPacketSize = ourNumber;
         haveNumber = false;
@@ -195,32 +315,7 @@ public class TraceRoutePingConverter extends InputStream
           ourNumber = 0;
         }
       }
-      
-    }
-  }
-
-  /**
-   * add line to output buffer
-   * @param line line to be added to output buffer
-   */
-  private void addOutLine(String line)
-  {
-    outList.add(line);
-  }
 
-  /**
-   * Populate supplied byte array with next available line of output and
-   * return the length. Alternatively return finished code -1 or
-   * buffer empty -2 to block.
-   */
-  private int sendOutLine(byte [] b) throws IOException
-  {
-    if (inStreamEmpty && nextOutLine >= outList.size()) return -1;
-    if (nextOutLine >= outList.size()) return OUT_BUFF_EMPTY;
-
-    byte [] buf = ((String)outList.get(nextOutLine++)).getBytes();
-    System.arraycopy(buf,0,b,0,buf.length);
-    return buf.length;
-    
+    }
   }
-}
\ No newline at end of file
+}
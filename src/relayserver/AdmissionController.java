@@ -0,0 +1,191 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import common.Logger;
+import common.RelayReply;
+
+/**
+ * Decides whether the relay server can take on another session, so a burst
+ * of reconnects is turned away quickly instead of swamping the JVM.
+ * Settings from the ini file:
+ * RELAYMAXSESSIONS - sessions running at once (0, the default, is no limit).
+ * RELAYMAXSESSIONSPERSOURCE - sessions per relay source IP (0 is no limit).
+ * RELAYPENDINGQUEUE - connections allowed to wait for a worker (default 50).
+ * In thread mode the sessions run on a pool of RELAYMAXSESSIONS workers.
+ * Rejected clients are sent a failure RelayReply from a single thread of
+ * their own, so saturation never holds up accept().
+ */
+public class AdmissionController {
+
+    static final String BUSY = "Relay server busy, please try again later";
+    private static final int REJECT_QUEUE = 100;
+    private static final int REJECT_TIMEOUT = 5000;
+
+    private final Logger logger;
+    private final int maxSessions;
+    private final int maxPerSource;
+    private final ThreadPoolExecutor pool;      // null if sessions are unlimited
+    private final ThreadPoolExecutor rejector;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = RelayMetrics.counter("sessions.rejected");
+    private final Map perSource = new HashMap(); // relay source ip -> int[1] count
+
+    public AdmissionController(Properties props, Logger logger) {
+        this.logger = logger;
+        maxSessions = IniProperties.getInt(props, "RELAYMAXSESSIONS", 0);
+        maxPerSource = IniProperties.getInt(props, "RELAYMAXSESSIONSPERSOURCE", 0);
+        int queue = IniProperties.getInt(props, "RELAYPENDINGQUEUE", 50);
+        if (maxSessions > 0) {
+            pool = new ThreadPoolExecutor(maxSessions, maxSessions, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue(Math.max(1, queue)), RelayThreads.factory("RelayWorker"));
+            pool.allowCoreThreadTimeOut(true);
+        } else {
+            pool = null;
+        }
+        rejector = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue(REJECT_QUEUE), RelayThreads.factory("RelayRejector"));
+        RelayMetrics.gauge("sessions.active", new RelayMetrics.Gauge() {
+            public long value() {
+                return getActive();
+            }
+        });
+        RelayMetrics.gauge("sessions.queued", new RelayMetrics.Gauge() {
+            public long value() {
+                return getQueued();
+            }
+        });
+    }
+
+    /**
+     * Run a thread mode worker for an accepted socket, or turn the client
+     * away if the pool and its queue are full.
+     */
+    public void execute(final Runnable worker, Socket sock) {
+        Runnable counted = new Runnable() {
+            public void run() {
+                active.incrementAndGet();
+                try {
+                    worker.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        };
+        if (pool == null) {
+            RelayThreads.start(counted, "RelayWorker");
+            return;
+        }
+        try {
+            pool.execute(counted);
+        } catch (RejectedExecutionException ex) {
+            reject(sock, BUSY);
+        }
+    }
+
+    /**
+     * For the NIO engine, which has no pool: count a new session in if there
+     * is room. Every true return must be matched by sessionEnded().
+     */
+    public boolean tryAdmit() {
+        while (true) {
+            int n = active.get();
+            if (maxSessions > 0 && n >= maxSessions) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (active.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void sessionEnded() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Count a session in against its relay source IP.
+     * Returns false if that source already has its maximum.
+     */
+    public boolean acquireSource(String srcIp) {
+        if (maxPerSource <= 0) {
+            return true;
+        }
+        synchronized (perSource) {
+            int[] count = (int[]) perSource.get(srcIp);
+            if (count == null) {
+                count = new int[1];
+                perSource.put(srcIp, count);
+            }
+            if (count[0] >= maxPerSource) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            count[0]++;
+            return true;
+        }
+    }
+
+    public void releaseSource(String srcIp) {
+        if (maxPerSource <= 0) {
+            return;
+        }
+        synchronized (perSource) {
+            int[] count = (int[]) perSource.get(srcIp);
+            if (count != null && --count[0] <= 0) {
+                perSource.remove(srcIp);
+            }
+        }
+    }
+
+    /** Message for a client turned away by acquireSource(). */
+    public String sourceBusyMessage(String srcIp) {
+        return "Too many relay sessions from " + srcIp + ", please try again later";
+    }
+
+    /** Send the client a failure reply and drop it, off the accept thread. */
+    void reject(final Socket sock, final String why) {
+        rejected.incrementAndGet();
+        logger.log("Rejecting connection from " + sock.getRemoteSocketAddress() + ": " + why);
+        try {
+            rejector.execute(new Runnable() {
+                public void run() {
+                    try {
+                        sock.setSoTimeout(REJECT_TIMEOUT);
+                        new RelayReply(false, why).write(sock.getOutputStream());
+                    } catch (Exception ex) {
+                    } finally {
+                        common.IoUtil.close(sock);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // the rejector is behind too, just drop the connection
+            common.IoUtil.close(sock);
+        }
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getQueued() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        rejector.shutdown();
+    }
+}
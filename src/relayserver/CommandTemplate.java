@@ -0,0 +1,126 @@
+package relayserver;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <platform><app>COMMAND property parsed once into its arguments, with the
+ * <NAME> placeholders found, so each request only fills in values.
+ * Arguments are split on blanks as Runtime.exec(String) did, but a value is
+ * always put inside the argument its placeholder was in, so a value with
+ * blanks in it can't add arguments to the command.
+ */
+public class CommandTemplate {
+
+    private static final Map cache = new ConcurrentHashMap(); // command -> CommandTemplate
+    private static final int MAX_CACHED = 1000;
+
+    private final String command;
+    private final String program;
+    private final Object[][] args;  // per argument, literal Strings and Placeholders
+    private final Set names = new HashSet(); // the placeholder names, with the <>
+
+    /** A <NAME> in an argument. */
+    private static class Placeholder {
+        final String name;
+
+        Placeholder(String name) {
+            this.name = name;
+        }
+    }
+
+    private CommandTemplate(String command) {
+        this.command = command;
+        StringTokenizer st = new StringTokenizer(command);
+        args = new Object[st.countTokens()][];
+        String first = "";
+        for (int x = 0 ; st.hasMoreTokens() ; x++) {
+            String arg = st.nextToken();
+            if (x == 0) {
+                first = arg;
+            }
+            args[x] = parseArg(arg);
+        }
+        program = first;
+    }
+
+    /** The template for a command, parsed the first time it is seen. */
+    public static CommandTemplate get(String command) {
+        CommandTemplate t = (CommandTemplate) cache.get(command);
+        if (t == null) {
+            t = new CommandTemplate(command);
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            cache.put(command, t);
+        }
+        return t;
+    }
+
+    /** The command as written in the ini file. */
+    public String getCommand() {
+        return command;
+    }
+
+    /** The program to run, the first argument. */
+    public String getProgram() {
+        return program;
+    }
+
+    /** True if the template has the placeholder, e.g. "<DESTIP>". */
+    public boolean hasPlaceholder(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * The arguments with the placeholders filled in from values
+     * ("<NAME>" -> String). A placeholder with no value is left as it is.
+     */
+    public String[] expand(Map values) {
+        String[] argv = new String[args.length];
+        StringBuffer sb = new StringBuffer();
+        for (int x = 0 ; x < args.length ; x++) {
+            Object[] parts = args[x];
+            if (parts.length == 1 && parts[0] instanceof String) {
+                argv[x] = (String) parts[0];
+                continue;
+            }
+            sb.setLength(0);
+            for (int y = 0 ; y < parts.length ; y++) {
+                if (parts[y] instanceof Placeholder) {
+                    String name = ((Placeholder) parts[y]).name;
+                    String v = (String) values.get(name);
+                    sb.append(v == null ? name : v);
+                } else {
+                    sb.append((String) parts[y]);
+                }
+            }
+            argv[x] = sb.toString();
+        }
+        return argv;
+    }
+
+    private Object[] parseArg(String arg) {
+        List parts = new ArrayList();
+        int from = 0;
+        while (from < arg.length()) {
+            int open = arg.indexOf('<', from);
+            int close = open == -1 ? -1 : arg.indexOf('>', open + 1);
+            if (close == -1) {
+                parts.add(arg.substring(from));
+                break;
+            }
+            if (open > from) {
+                parts.add(arg.substring(from, open));
+            }
+            String name = arg.substring(open, close + 1);
+            parts.add(new Placeholder(name));
+            names.add(name);
+            from = close + 1;
+        }
+        if (parts.isEmpty()) {
+            parts.add("");
+        }
+        return parts.toArray();
+    }
+}
@@ -0,0 +1,214 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import configcollector.CiscoSnmpCollector;
+import configcollector.CiscoSnmpJob;
+import configcollector.Syslogger;
+import common.buffwriter.BuffWriterStream;
+
+/**
+ * Runs the config collections for CONFIG requests, limiting how many run at
+ * once in all, per device platform and per TFTP server the devices send
+ * their configs to, so a change window collecting a whole domain can't
+ * swamp a platform or a TFTP server. Collections over a limit wait in
+ * arrival order; a waiting collection whose platform and TFTP server have
+ * room goes ahead of earlier ones that are blocked, so one busy server
+ * doesn't hold up the rest. The collectors share the SyslogService's
+ * Syslogger, and the result of each collection is sent to syslog.
+ * Settings from the ini file:
+ * CONFIGMAXCOLLECTIONS - collections at once in all (default 16).
+ * CONFIGMAXPERPLATFORM - collections at once per platform (default 8).
+ * CONFIGMAXPERTFTP - collections at once per TFTP server (default 4).
+ * CONFIGQUEUETIMEOUT - seconds a collection may wait to run (default 300).
+ */
+public class ConfigCollectionScheduler {
+
+    private static ConfigCollectionScheduler instance;
+
+    private final int maxRunning;
+    private final int maxPerPlatform;
+    private final int maxPerTftp;
+    private final long timeout;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedList waiting = new LinkedList(); // of Waiter, in arrival order
+    private final Map platforms = new HashMap();        // platform -> int[] {running}
+    private final Map tftps = new HashMap();            // tftp server -> int[] {running}
+    private int running;
+
+    /** A collection waiting to run. */
+    private static class Waiter {
+        final String platform;
+        final String tftp;
+        final Condition granted;
+        boolean isGranted;
+
+        Waiter(String platform, String tftp, Condition c) {
+            this.platform = platform;
+            this.tftp = tftp;
+            granted = c;
+        }
+    }
+
+    public ConfigCollectionScheduler(Properties props) {
+        maxRunning = Math.max(1, IniProperties.getInt(props, "CONFIGMAXCOLLECTIONS", 16));
+        maxPerPlatform = Math.max(1, IniProperties.getInt(props, "CONFIGMAXPERPLATFORM", 8));
+        maxPerTftp = Math.max(1, IniProperties.getInt(props, "CONFIGMAXPERTFTP", 4));
+        timeout = IniProperties.getLong(props, "CONFIGQUEUETIMEOUT", 300) * 1000;
+        RelayMetrics.gauge("config.running", new RelayMetrics.Gauge() {
+            public long value() {
+                lock.lock();
+                try {
+                    return running;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        RelayMetrics.gauge("config.queued", new RelayMetrics.Gauge() {
+            public long value() {
+                lock.lock();
+                try {
+                    return waiting.size();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /** The shared scheduler, created from the properties the first time. */
+    public static synchronized ConfigCollectionScheduler getInstance(Properties props) {
+        if (instance == null) {
+            instance = new ConfigCollectionScheduler(props);
+        }
+        return instance;
+    }
+
+    /** True if a collection for the platform and TFTP server would have to wait. */
+    public boolean isBusy(String platform, String tftp) {
+        lock.lock();
+        try {
+            return !hasRoom(platform, tftp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run the collection of one job when there is room for it, on the
+     * calling thread, with what it prints captured to out.
+     * Returns the number of successful collections, as the collector does.
+     * @throws IOException if it times out waiting
+     */
+    public int collect(String platform, String tftp, String device, CiscoSnmpJob job,
+                       BuffWriterStream out) throws Exception {
+        acquire(platform, tftp);
+        int successes;
+        try {
+            // server side work is done outside the capture, so only the
+            // collector's own output reaches the client
+            SyslogService syslog = SyslogService.getShared();
+            Syslogger syslogger = syslog.getSyslogger();
+            CiscoSnmpCollector csc;
+            ThreadOutput.begin(out);
+            try {
+                csc = new CiscoSnmpCollector();
+                csc.add(job);
+                if (syslogger != null) {
+                    csc.setLogger(syslogger);
+                }
+                csc.run();
+            } finally {
+                ThreadOutput.end();
+            }
+            RelayMetrics.counter("config.collections").incrementAndGet();
+            successes = csc.getSuccesses();
+            syslog.send(successes == 0 ? SyslogService.WARNING : SyslogService.INFO, "TelnetRelay",
+                        "Config collection for " + device + (successes == 0 ? " failed" : " succeeded"));
+        } finally {
+            release(platform, tftp);
+        }
+        return successes;
+    }
+
+    private boolean hasRoom(String platform, String tftp) {
+        return running < maxRunning && count(platforms, platform) < maxPerPlatform
+               && count(tftps, tftp) < maxPerTftp;
+    }
+
+    private static int count(Map m, String key) {
+        int[] n = (int[]) m.get(key);
+        return n == null ? 0 : n[0];
+    }
+
+    private static void add(Map m, String key, int delta) {
+        int[] n = (int[]) m.get(key);
+        if (n == null) {
+            n = new int[1];
+            m.put(key, n);
+        }
+        n[0] += delta;
+        if (n[0] == 0) {
+            m.remove(key);
+        }
+    }
+
+    private void take(String platform, String tftp) {
+        running++;
+        add(platforms, platform, 1);
+        add(tftps, tftp, 1);
+    }
+
+    private void acquire(String platform, String tftp) throws IOException {
+        lock.lock();
+        try {
+            // any waiter with room has been let go already, so this can too
+            if (hasRoom(platform, tftp)) {
+                take(platform, tftp);
+                return;
+            }
+            Waiter w = new Waiter(platform, tftp, lock.newCondition());
+            waiting.add(w);
+            long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                while (!w.isGranted && left > 0) {
+                    left = w.granted.awaitNanos(left);
+                }
+            } catch (InterruptedException ie) {
+                // treated as a timeout below, the caller still sees the interrupt
+                Thread.currentThread().interrupt();
+            }
+            if (!w.isGranted) {
+                waiting.remove(w);
+                RelayMetrics.counter("config.rejected").incrementAndGet();
+                throw new IOException("Timed out waiting to collect config");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Free a slot, handing it to the first waiter that now has room. */
+    private void release(String platform, String tftp) {
+        lock.lock();
+        try {
+            running--;
+            add(platforms, platform, -1);
+            add(tftps, tftp, -1);
+            for (Iterator i = waiting.iterator(); i.hasNext() && running < maxRunning;) {
+                Waiter w = (Waiter) i.next();
+                if (hasRoom(w.platform, w.tftp)) {
+                    i.remove();
+                    take(w.platform, w.tftp);
+                    w.isGranted = true;
+                    w.granted.signal();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -5,20 +5,17 @@ package relayserver;
  * The threaded run method does the action and populates an output buffer, 
  * whilst the instance acts as an input stream to service the output buffer 
  * to the client.
+ * The collected file itself isn't put in the buffer: once the buffer is
+ * read out the file is read straight from disk through a FileChannel into
+ * the reader's own array, so a large config is never held in memory.
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Properties;
-import java.util.StringTokenizer;
 import common.IoUtil;
-import configcollector.CiscoSnmpCollector;
 import configcollector.CiscoSnmpJob;
-import configcollector.Syslogger;
 import common.buffwriter.BuffWriterStream;
-import common.buffwriter.OutDirector;
 import common.Constants;
 import common.RelayRequest;
  
@@ -26,14 +23,18 @@ public class ConfigCollectorStream extends BuffWriterStream
 {
   private RelayRequest rrq;
   private Constants constants;
-  private static final int MAX_TIMEOUT_INTERATIONS = 20;
+  private static final long MAX_WAIT = 20000; // ms for the tftp'd file to arrive
+  private volatile FileChannel config; // the collected file, read after the buffer
+  private boolean bufferDone = false;
 
   public ConfigCollectorStream(RelayRequest rrq, Constants c)
   {
     super();
+    // in place before the relay takes System.out for the client's input
+    ThreadOutput.install();
     constants = c;
     this.rrq = rrq;
-    new Thread(this).start();
+    RelayThreads.start(this, "ConfigCollectorStream");
   }
 
   /**
@@ -42,22 +43,17 @@ public class ConfigCollectorStream extends BuffWriterStream
    */
   public void run()
   {
-    // get and kep the properties, we use them a lot
-    Properties props = constants.getProperties();
+    // the settings in use, kept for the whole request
+    RelayConfig relayConfig = RelayConfig.current();
     // build the necerssary structures for the config request
-    List syslogTargets = new ArrayList();
-    CiscoSnmpCollector csc = null;
-    Syslogger syslogger = null;
-    String ftpIp = null;
     String ccProhibited = null;
 
     writeln("Starting config collection for "+rrq.deviceName);
 
     try {
       // some devices require directory backup ... this is not supported by manual config collection
-      ccProhibited = (String) props.get("CC_PROHIBITED");
-    
-      ftpIp  = (String) props.get("RELAYSERVER");
+      ccProhibited = relayConfig.getCcProhibited();
+
       // build a collector job
       
 			String[] options = common.IoUtil.split(rrq.options, ':');
@@ -82,84 +78,42 @@ public class ConfigCollectorStream extends BuffWriterStream
                   
       // create the job
       CiscoSnmpJob csjob = new CiscoSnmpJob(line);
-      // give the job to the collector
-      if(csc == null) {
-        csc = new CiscoSnmpCollector();
-      }
-      csc.add(csjob);
-
-      // build syslogger
-      String syslogProp = null;
-
-      syslogProp  = (String) props.get("SYSLOGTO");
-      StringTokenizer st = new StringTokenizer(syslogProp);
-      while(st.hasMoreTokens()) {
-        syslogTargets.add(st.nextToken());
-      }
-
-      // Create a Syslogger if needed
-      if(syslogTargets.size() > 0) {
-        syslogger = new Syslogger();
-        for(int x = 0 ; x < syslogTargets.size() ; x++) {
-          String s = (String) syslogTargets.get(x);
-          syslogger.addTarget(s);
-        }
-      }
-      
-      // probably a redundant check but do it anyway
-      if (csc == null)
+      // run the collection when the scheduler has room for it, its output
+      // coming to our buffer
+      ConfigCollectionScheduler ccs = ConfigCollectionScheduler.getInstance(relayConfig.getProperties());
+      if (ccs.isBusy(rrq.platform, rrq.relaySrcIp))
       {
-        throw new Exception("Error, no config job established");
+        writeln("Waiting for other config collections to finish");
       }
-
-      // if we have sysloggers then add them to the config job
-      if(syslogger != null) {
-        csc.setLogger(syslogger);
-      }
-
-      // run the collection redirecting output to our buffer
-      OutDirector od = new OutDirector(this); // redirect output from csc to us
-      csc.run();
-      od.resetOut(); // rest system.out back to where it was before
-      od = null;
+      int successes = ccs.collect(rrq.platform, rrq.relaySrcIp, rrq.deviceName, csjob, this);
 
       // see if a success
-      if (csc.getSuccesses() == 0) 
+      if (successes == 0) 
       {
         throw new Exception("Config collection failed!");
       }
 
       /*
-       * we need to give the tftp server a chance to put the file where we want 
-       * it, so have a kip, then see if it is there. (A bit clumsy but we've
-       * done worse before and will again)
+       * the tftp server puts the file in the platform's folder once the
+       * device sends it, so wait for it to turn up and finish growing.
        */
       // build the file name to get
-      String fileDir = (String)props.get(rrq.platform + "_TFTPFOLDER");
-      fileDir = common.IoUtil.replace(fileDir,"<DOMAIN>",rrq.domain).trim();
-      int attempts = 0;
-      File file = null;
-      do
+      String fileDir = relayConfig.platform(rrq.platform).getTftpFolder(rrq.domain);
+      if (fileDir == null)
       {
-        try
-        {
-          Thread.currentThread().sleep(1000);
-        }catch(Exception e){}
-      
-        file = new File(fileDir,csjob.getFname());
-        if (file != null && file.isFile()) break;
-      }while(attempts++ < MAX_TIMEOUT_INTERATIONS);
-             
-      if (file == null || !file.isFile()) 
+        throw new Exception(rrq.platform + "_TFTPFOLDER not defined");
+      }
+      File file = new File(fileDir,csjob.getFname());
+      if (!new FileArrival(file).await(MAX_WAIT))
       {
         writeln("config file not found");
         throw new FileNotFoundException();
       }
 
-      // read the file and punt it to the output buffer
-      List fileLines;
+      // open the file, it is read from when the buffer has been read
+      FileChannel fc;
       try{
-        fileLines = common.IoUtil.readFileLines(file.getAbsolutePath().trim());
+        fc = new FileInputStream(file.getAbsolutePath().trim()).getChannel();
       }catch(Exception e)
       {
         e.printStackTrace();
@@ -172,12 +126,9 @@ public class ConfigCollectorStream extends BuffWriterStream
       writeln("##DISPLAYEND##");
       // write the file name to the out buffer first
       writeln(file.getName().trim());
-      // now dump the file contents 
-      for (Iterator i=fileLines.iterator();i.hasNext();)
-      {
-        writeln((String)i.next());
-      }
-      // all done now so send end tag to kill the stream
+      // the file contents follow the buffer
+      config = fc;
+      // all done now so send end tag to end the buffer
       writeEnd();
     } catch(Exception ex) {
       ex.printStackTrace();
@@ -187,4 +138,73 @@ public class ConfigCollectorStream extends BuffWriterStream
     }
     return;
   }
+
+  public int read()
+  {
+    if (!bufferDone)
+    {
+      int c = super.read();
+      if (c != -1)
+      {
+        return c;
+      }
+      bufferDone = true;
+    }
+    byte[] b = new byte[1];
+    try
+    {
+      return readConfig(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }catch (IOException ex)
+    {
+      ex.printStackTrace();
+      return -1;
+    }
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (!bufferDone)
+    {
+      int n = super.read(b, off, len);
+      if (n != -1)
+      {
+        return n;
+      }
+      bufferDone = true;
+    }
+    return readConfig(b, off, len);
+  }
+
+  /**
+   * Read the collected file once the buffer is done, straight into the
+   * caller's array.
+   */
+  private int readConfig(byte[] b, int off, int len) throws IOException
+  {
+    FileChannel fc = config;
+    if (fc == null)
+    {
+      return -1;
+    }
+    if (len == 0)
+    {
+      return 0;
+    }
+    int n = fc.read(ByteBuffer.wrap(b, off, len));
+    if (n == -1)
+    {
+      fc.close();
+    }
+    return n;
+  }
+
+  public void close() throws IOException
+  {
+    FileChannel fc = config;
+    if (fc != null)
+    {
+      fc.close();
+    }
+    super.close();
+  }
 }
\ No newline at end of file
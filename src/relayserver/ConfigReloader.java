@@ -0,0 +1,115 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import common.Constants;
+
+/**
+ * Loads TelnetRelayServer.ini, and loads it again whenever it changes, so
+ * settings can be changed without a restart dropping every session. A
+ * changed file is only put in use if RelayConfig finds no problems with it,
+ * otherwise the running settings are kept and the problems logged. It is
+ * put in use by publishing the RelayConfig made from it, which holds the
+ * properties and the running platform together: a request reads its
+ * settings from one RelayConfig.current(), so it sees either the old
+ * settings or the new, never a mix, and requests already running carry on
+ * with what they started with. Constants.properties and runningPlatform are
+ * set as well, for code outside the relay server. The file is watched by
+ * the FileWatchService, or polled once a minute if it can't be.
+ * Settings read when the server or a shared service starts (engine, thread
+ * and queue sizes, keystore and TLS sessions, process and collection limits,
+ * the diagnostic cache, syslog and metrics) still need a restart; a change
+ * to one of them is logged as such.
+ */
+public class ConfigReloader {
+
+    private static final String[] STARTUP_ONLY = {
+        "RELAYENGINE", "RELAYNIOTHREADS", "RELAYBACKLOG", "THREADMODE", "THREADPINNINGTRACE",
+        "RELAYKEYSTORE", "RELAYKEYSTOREPASSWORD", "RELAYKEYSTORETYPE", "RELAYTLSTHREADS",
+        "RELAYTLSSESSIONCACHESIZE", "RELAYTLSSESSIONTIMEOUT", "RELAYTLSSESSIONTICKETS",
+        "RELAYHANDSHAKETHREADS", "RELAYHANDSHAKEQUEUE", "RELAYREQUESTTIMEOUT",
+        "RELAYPENDINGQUEUE", "RELAYMAXSESSIONS", "RELAYMAXSESSIONSPERSOURCE",
+        // DiagnosticExecutor, DiagnosticCoalescer and ConfigCollectionScheduler
+        "PINGMAXPROCESSES", "PINGMAXQUEUED", "PINGTIMEOUT",
+        "TRACEROUTEMAXPROCESSES", "TRACEROUTEMAXQUEUED", "TRACEROUTETIMEOUT",
+        "DIAGNOSTICCACHETTL", "DIAGNOSTICCOALESCE",
+        "CONFIGMAXCOLLECTIONS", "CONFIGMAXPERPLATFORM", "CONFIGMAXPERTFTP", "CONFIGQUEUETIMEOUT",
+        "SYSLOGSERVICE", "SYSLOGFACILITY", "SYSLOGMAXQUEUED", "RELAYMETRICSINTERVAL", "TEXTDBMAPPED"
+    };
+
+    private final String fileName;
+    private final ReloadableFile file;
+
+    /**
+     * Load the file into Constants.properties, and watch it. Throws if it
+     * can't be read or has problems.
+     */
+    public ConfigReloader(String fileName) throws Exception {
+        this.fileName = fileName;
+        long lastMod = new File(fileName).lastModified();
+        Properties p = load();
+        RelayConfig c = RelayConfig.get(p);
+        if (!c.problems().isEmpty()) {
+            throw new Exception(fileName + ": " + c.problems());
+        }
+        publish(c);
+        file = new ReloadableFile(fileName, "ConfigReloader file watcher", new ReloadableFile.Loader() {
+            public boolean load() {
+                return reload();
+            }
+        });
+        file.loaded(lastMod);
+        file.start();
+    }
+
+    private Properties load() throws IOException {
+        Properties p = new Properties();
+        FileInputStream fis = new FileInputStream(fileName);
+        try {
+            p.load(fis);
+        } finally {
+            fis.close();
+        }
+        return p;
+    }
+
+    private static void publish(RelayConfig c) {
+        RelayConfig.publish(c);
+        Constants.runningPlatform = c.getRunningPlatform();
+        Constants.properties = c.getProperties();
+    }
+
+    /** Load the file again, returning true if it was put in use. */
+    private boolean reload() {
+        Properties p;
+        try {
+            p = load();
+        } catch (IOException ex) {
+            System.out.println(ReloadableFile.dateTime() + " Can't reload " + fileName + ", keeping the running settings: " + ex);
+            return false;
+        }
+        RelayConfig c = RelayConfig.get(p);
+        if (!c.problems().isEmpty()) {
+            RelayMetrics.counter("config.reload.rejected").incrementAndGet();
+            System.out.println(ReloadableFile.dateTime() + " Not reloading " + fileName + ", keeping the running settings: " + c.problems());
+            return false;
+        }
+        Properties old = RelayConfig.current().getProperties();
+        for (int x = 0 ; old != null && x < STARTUP_ONLY.length ; x++) {
+            String was = old.getProperty(STARTUP_ONLY[x]);
+            String now = p.getProperty(STARTUP_ONLY[x]);
+            if (was == null ? now != null : !was.equals(now)) {
+                System.out.println(ReloadableFile.dateTime() + " " + STARTUP_ONLY[x] + " changed, this takes effect on restart");
+            }
+        }
+        publish(c);
+        RelayMetrics.counter("config.reloads").incrementAndGet();
+        System.out.println(ReloadableFile.dateTime() + " File loaded: " + fileName);
+        return true;
+    }
+
+    /** Stop watching the file. */
+    public void close() {
+        file.close();
+    }
+}
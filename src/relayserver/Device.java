@@ -0,0 +1,70 @@
+package relayserver;
+
+/**
+ * A DEVICE line of the TextDataBase, parsed.
+ * Format: device.domain, device ip, iv t2 ip, write community, cc (Y/N), access.
+ * Missing fields are empty strings. The platform is the owning domain's.
+ */
+public class Device {
+
+    private final String line;  // the line without the DEVICE key
+    private final Domain owner;
+    private final String name;
+    private final String ip;
+    private final String ivT2Ip;
+    private final String writeCommunity;
+    private final boolean cc;
+    private final String access;
+
+    /** Parse the fields after the DEVICE key. */
+    public Device(String line, Domain owner) {
+        this.line = line;
+        this.owner = owner;
+        String[] f = TextDataBase.fields(line);
+        name = TextDataBase.field(f, 0);
+        ip = TextDataBase.field(f, 1);
+        ivT2Ip = TextDataBase.field(f, 2);
+        writeCommunity = TextDataBase.field(f, 3);
+        cc = TextDataBase.field(f, 4).equalsIgnoreCase("Y");
+        access = TextDataBase.field(f, 5).toUpperCase();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getIvT2Ip() {
+        return ivT2Ip;
+    }
+
+    public String getWriteCommunity() {
+        return writeCommunity;
+    }
+
+    public boolean isCc() {
+        return cc;
+    }
+
+    /** The access method, e.g. TELNET, upper case. */
+    public String getAccess() {
+        return access;
+    }
+
+    /** The domain the device is listed under. */
+    public Domain getDomain() {
+        return owner;
+    }
+
+    public String getPlatform() {
+        return owner.getPlatform();
+    }
+
+    /** The line as it was in the file, without the DEVICE key. */
+    public String toString() {
+        return line;
+    }
+}
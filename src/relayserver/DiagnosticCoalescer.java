@@ -0,0 +1,323 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Shares one PING or TRACEROUTE run between identical requests (same
+ * platform, application, source, destination and options). The first
+ * request starts the run; its output and error output are copied into
+ * shared buffers that every request for the same thing reads from the
+ * start, so engineers who all trace the same dead device within seconds
+ * fork one process between them. The run is stopped if every request
+ * reading it goes away before it ends. A finished run's output is kept for
+ * a short while and replayed to later requests. Settings from the ini file:
+ * DIAGNOSTICCOALESCE - Y/N, share runs at all (default Y).
+ * DIAGNOSTICCACHETTL - seconds a finished run is replayed for (default 10, 0 for none).
+ */
+public class DiagnosticCoalescer {
+
+    private static final int MAX_OUTPUT = 1024 * 1024;
+
+    private static DiagnosticCoalescer instance;
+
+    private final boolean enabled;
+    private final long ttl;
+    private final Map runs = new HashMap(); // key -> Shared
+
+    /** Starts and stops the real run for a set of identical requests. */
+    public interface Source {
+        /**
+         * Start the run, returning its output streams: the output and, if
+         * it has to be read separately, the error output (else null).
+         */
+        public InputStream[] open() throws Exception;
+
+        /** Stop the run early, nobody wanting its output any more. */
+        public void stop();
+    }
+
+    /** One output stream of a run, as read so far. */
+    private static class Output {
+        byte[] buf = new byte[4096];
+        int len;
+        boolean truncated;
+        boolean ended;
+    }
+
+    /** The output of one run. */
+    private static class Shared {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition more = lock.newCondition();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Output out = new Output();
+        final Output err = new Output();
+        Source source;
+        Exception failure;         // why the run didn't start
+        int pumps;                 // streams still being copied
+        boolean hasErr;            // the run has an error output, set before started
+        int subscribers;           // requests reading it, guarded by the coalescer
+        long doneAt = -1;          // when the run ended, -1 while running
+
+        void append(Output o, byte[] b, int off, int n) {
+            lock.lock();
+            try {
+                if (o.len + n > MAX_OUTPUT) {
+                    n = MAX_OUTPUT - o.len;
+                    o.truncated = true;
+                }
+                if (o.len + n > o.buf.length) {
+                    byte[] nb = new byte[Math.min(MAX_OUTPUT, Math.max(o.buf.length * 2, o.len + n))];
+                    System.arraycopy(o.buf, 0, nb, 0, o.len);
+                    o.buf = nb;
+                }
+                System.arraycopy(b, off, o.buf, o.len, n);
+                o.len += n;
+                more.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void pumpEnded(Output o) {
+            lock.lock();
+            try {
+                o.ended = true;
+                if (--pumps == 0) {
+                    doneAt = System.currentTimeMillis();
+                }
+                more.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isDone() {
+            lock.lock();
+            try {
+                return doneAt != -1;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One request's view of an output of a Shared run, from the beginning.
+     * Closing the reader of the output ends the request's subscription.
+     */
+    private class Reader extends InputStream {
+        private final String key;
+        private final Shared s;
+        private final Output o;
+        private final boolean subscription;
+        private boolean closed;
+
+        private int pos;
+
+        Reader(String key, Shared s, Output o, boolean subscription) {
+            this.key = key;
+            this.s = s;
+            this.o = o;
+            this.subscription = subscription;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            s.lock.lock();
+            try {
+                while (pos == o.len && !o.ended && !closed) {
+                    try {
+                        s.more.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (pos == o.len || closed) {
+                    return -1;
+                }
+                n = Math.min(n, o.len - pos);
+                System.arraycopy(o.buf, pos, b, off, n);
+                pos += n;
+                return n;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+
+        public void close() {
+            s.lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                s.more.signalAll();
+            } finally {
+                s.lock.unlock();
+            }
+            if (subscription) {
+                unsubscribe(key, s);
+            }
+        }
+    }
+
+    public DiagnosticCoalescer(Properties props) {
+        enabled = IniProperties.getBoolean(props, "DIAGNOSTICCOALESCE", true);
+        ttl = IniProperties.getLong(props, "DIAGNOSTICCACHETTL", 10) * 1000;
+        RelayMetrics.gauge("diag.coalesce.hitpct", new RelayMetrics.Gauge() {
+            public long value() {
+                long hits = RelayMetrics.get("diag.coalesce.hits") + RelayMetrics.get("diag.cache.hits");
+                long all = hits + RelayMetrics.get("diag.coalesce.misses");
+                return all == 0 ? 0 : hits * 100 / all;
+            }
+        });
+    }
+
+    /** The shared coalescer, created from the properties the first time. */
+    public static synchronized DiagnosticCoalescer getInstance(Properties props) {
+        if (instance == null) {
+            instance = new DiagnosticCoalescer(props);
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The output of the run for key: one already running or recently
+     * finished, else a new one started from source. Returns the output and
+     * the error output (null if the run has none); closing the output
+     * leaves the run, which is stopped if nobody else is reading it.
+     * @param timeout ms to wait for a run someone else is starting
+     */
+    public InputStream[] subscribe(String key, long timeout, Source source) throws Exception {
+        Shared s;
+        boolean first = false;
+        synchronized (this) {
+            purge();
+            s = (Shared) runs.get(key);
+            if (s == null) {
+                s = new Shared();
+                s.source = source;
+                runs.put(key, s);
+                first = true;
+            }
+            s.subscribers++;
+        }
+        if (first) {
+            RelayMetrics.counter("diag.coalesce.misses").incrementAndGet();
+            start(key, s, source);
+        } else {
+            RelayMetrics.counter(s.isDone() ? "diag.cache.hits" : "diag.coalesce.hits").incrementAndGet();
+            boolean started = false;
+            try {
+                started = s.started.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                // treated as a timeout below
+                Thread.currentThread().interrupt();
+            }
+            if (!started) {
+                unsubscribe(key, s);
+                throw new IOException("Timed out waiting for the run to start");
+            }
+        }
+        if (s.failure != null) {
+            throw s.failure;
+        }
+        InputStream err = null;
+        if (s.hasErr) {
+            err = new Reader(key, s, s.err, false);
+        }
+        return new InputStream[] { new Reader(key, s, s.out, true), err };
+    }
+
+    private void start(final String key, final Shared s, Source source) {
+        try {
+            InputStream[] in = source.open();
+            s.hasErr = in[1] != null;
+            s.pumps = in[1] == null ? 1 : 2;
+            pump(key, s, s.out, in[0]);
+            if (in[1] != null) {
+                pump(key, s, s.err, in[1]);
+            }
+        } catch (Exception ex) {
+            s.failure = ex;
+            synchronized (this) {
+                runs.remove(key);
+            }
+        } finally {
+            s.started.countDown();
+        }
+    }
+
+    /** A request has stopped reading: stop the run if it was the last and it hasn't ended. */
+    private void unsubscribe(String key, Shared s) {
+        synchronized (this) {
+            if (--s.subscribers > 0 || s.isDone() || s.started.getCount() > 0) {
+                return;
+            }
+            if (runs.get(key) == s) {
+                runs.remove(key);
+            }
+        }
+        RelayMetrics.counter("diag.coalesce.abandoned").incrementAndGet();
+        s.source.stop();
+    }
+
+    /** Copy a stream of the run into the shared buffer. */
+    private void pump(final String key, final Shared s, final Output o, final InputStream in) {
+        RelayThreads.start(new Runnable() {
+            public void run() {
+                byte[] b = new byte[4096];
+                try {
+                    int n;
+                    while ((n = in.read(b)) != -1) {
+                        s.append(o, b, 0, n);
+                    }
+                } catch (IOException ex) {
+                    // the run ended badly, readers get what there was
+                } finally {
+                    common.IoUtil.close(in);
+                    s.pumpEnded(o);
+                    if (s.isDone() && (ttl <= 0 || s.out.truncated || s.err.truncated)) {
+                        forget(key, s);
+                    }
+                }
+            }
+        }, "DiagnosticPump");
+    }
+
+    private synchronized void forget(String key, Shared s) {
+        if (runs.get(key) == s) {
+            runs.remove(key);
+        }
+    }
+
+    /** Drop finished runs older than the TTL. */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator i = runs.values().iterator(); i.hasNext();) {
+            Shared s = (Shared) i.next();
+            s.lock.lock();
+            try {
+                if (s.doneAt != -1 && s.doneAt + ttl <= now) {
+                    i.remove();
+                }
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Runs the PING and TRACEROUTE processes for local requests, so that a burst
+ * of requests during an outage can't fork without limit. Each command type
+ * (the request's app name) has its own limit on running processes; requests
+ * over it queue, and the queue is served round robin between clients so one
+ * busy client can't starve the rest. A process that runs past its timeout is
+ * killed. Settings from the ini file, <APP> being PING, TRACEROUTE etc:
+ * <APP>MAXPROCESSES - processes of the type at once (default 16).
+ * <APP>MAXQUEUED - requests waiting for one (default 200).
+ * <APP>TIMEOUT - seconds a process may run, and a request may wait (default 120).
+ */
+public class DiagnosticExecutor {
+
+    private static DiagnosticExecutor instance;
+
+    private final Properties props;
+    private final Map gates = new HashMap(); // command type -> Gate
+    private final ScheduledExecutorService killer;
+    private final ExecutorService reaper = Executors.newCachedThreadPool(RelayThreads.factory("DiagnosticReaper"));
+
+    /** The limit and the queue for one command type. */
+    private static class Gate {
+        final String type;
+        final int limit;
+        final int maxQueued;
+        final long timeout;
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap queues = new LinkedHashMap(); // client -> LinkedList of Waiter, in turn order
+        int running;
+        int queued;
+
+        Gate(String type, int limit, int maxQueued, long timeout) {
+            this.type = type;
+            this.limit = limit;
+            this.maxQueued = maxQueued;
+            this.timeout = timeout;
+        }
+    }
+
+    /** A request waiting for a process slot. */
+    private static class Waiter {
+        final Condition granted;
+        boolean isGranted;
+
+        Waiter(Condition c) {
+            granted = c;
+        }
+    }
+
+    public DiagnosticExecutor(Properties props) {
+        this.props = props;
+        killer = Executors.newSingleThreadScheduledExecutor(RelayThreads.factory("DiagnosticTimeout"));
+    }
+
+    /** The shared executor, created from the properties the first time. */
+    public static synchronized DiagnosticExecutor getInstance(Properties props) {
+        if (instance == null) {
+            instance = new DiagnosticExecutor(props);
+        }
+        return instance;
+    }
+
+    /**
+     * Start a process once the type has a free slot, waiting for one in
+     * turn with other clients.
+     * @param type the command type, e.g. PING
+     * @param client who is asking, for fair queueing
+     * @throws IOException if it can't start, times out waiting or the queue is full
+     */
+    public Process start(String type, String client, String[] argv) throws IOException {
+        final Gate g = gate(type);
+        acquire(g, client);
+        final Process p;
+        try {
+            p = new ProcessBuilder(argv).start();
+        } catch (IOException ex) {
+            release(g);
+            throw ex;
+        } catch (RuntimeException ex) {
+            release(g);
+            throw ex;
+        }
+        RelayMetrics.counter("diag." + type + ".started").incrementAndGet();
+        final Future kill = killer.schedule(new Runnable() {
+            public void run() {
+                RelayMetrics.counter("diag." + g.type + ".killed").incrementAndGet();
+                p.destroy();
+            }
+        }, g.timeout, TimeUnit.MILLISECONDS);
+        reaper.execute(new Runnable() {
+            public void run() {
+                try {
+                    p.waitFor();
+                } catch (InterruptedException ie) {
+                    p.destroy();
+                    Thread.currentThread().interrupt();
+                } finally {
+                    kill.cancel(false);
+                    release(g);
+                }
+            }
+        });
+        return p;
+    }
+
+    /** How long, in ms, a request of the type may wait to run. */
+    public long getTimeout(String type) {
+        return gate(type).timeout;
+    }
+
+    private synchronized Gate gate(String type) {
+        Gate g = (Gate) gates.get(type);
+        if (g == null) {
+            g = new Gate(type,
+                    Math.max(1, IniProperties.getInt(props, type + "MAXPROCESSES", 16)),
+                    IniProperties.getInt(props, type + "MAXQUEUED", 200),
+                    IniProperties.getLong(props, type + "TIMEOUT", 120) * 1000);
+            gates.put(type, g);
+            final Gate gg = g;
+            RelayMetrics.gauge("diag." + type + ".running", new RelayMetrics.Gauge() {
+                public long value() {
+                    return gg.running;
+                }
+            });
+            RelayMetrics.gauge("diag." + type + ".queued", new RelayMetrics.Gauge() {
+                public long value() {
+                    return gg.queued;
+                }
+            });
+        }
+        return g;
+    }
+
+    private void acquire(Gate g, String client) throws IOException {
+        g.lock.lock();
+        try {
+            if (g.running < g.limit && g.queued == 0) {
+                g.running++;
+                return;
+            }
+            if (g.queued >= g.maxQueued) {
+                RelayMetrics.counter("diag." + g.type + ".rejected").incrementAndGet();
+                throw new IOException("Too many " + g.type + " requests, try later");
+            }
+            Waiter w = new Waiter(g.lock.newCondition());
+            LinkedList q = (LinkedList) g.queues.get(client);
+            if (q == null) {
+                q = new LinkedList();
+                g.queues.put(client, q);
+            }
+            q.add(w);
+            g.queued++;
+            long left = TimeUnit.MILLISECONDS.toNanos(g.timeout);
+            try {
+                while (!w.isGranted && left > 0) {
+                    left = w.granted.awaitNanos(left);
+                }
+            } catch (InterruptedException ie) {
+                // treated as a timeout below, the caller still sees the interrupt
+                Thread.currentThread().interrupt();
+            }
+            if (!w.isGranted) {
+                q.remove(w);
+                if (q.isEmpty()) {
+                    g.queues.remove(client);
+                }
+                g.queued--;
+                RelayMetrics.counter("diag." + g.type + ".rejected").incrementAndGet();
+                throw new IOException("Timed out waiting to run " + g.type);
+            }
+        } finally {
+            g.lock.unlock();
+        }
+    }
+
+    /** Free a slot, handing it to the next client in turn. */
+    private void release(Gate g) {
+        g.lock.lock();
+        try {
+            g.running--;
+            Iterator i = g.queues.entrySet().iterator();
+            if (!i.hasNext()) {
+                return;
+            }
+            Map.Entry e = (Map.Entry) i.next();
+            LinkedList q = (LinkedList) e.getValue();
+            Waiter w = (Waiter) q.removeFirst();
+            i.remove();
+            if (!q.isEmpty()) {
+                g.queues.put(e.getKey(), q);  // back of the line
+            }
+            g.queued--;
+            g.running++;
+            w.isGranted = true;
+            w.granted.signal();
+        } finally {
+            g.lock.unlock();
+        }
+    }
+
+    public void close() {
+        killer.shutdownNow();
+        reaper.shutdownNow();
+    }
+}
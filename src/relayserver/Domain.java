@@ -0,0 +1,59 @@
+package relayserver;
+
+/**
+ * A DOMAIN line of the TextDataBase, parsed.
+ * Format: name, ss t2 ip, domain t1 ip, domain, iv t2 ip, platform.
+ * Missing fields are empty strings.
+ */
+public class Domain {
+
+    private final String line;  // the line without the DOMAIN key
+    private final String name;
+    private final String ssT2Ip;
+    private final String domT1Ip;
+    private final String domain;
+    private final String ivT2Ip;
+    private final String platform;
+
+    /** Parse the fields after the DOMAIN key. */
+    public Domain(String line) {
+        this.line = line;
+        String[] f = TextDataBase.fields(line);
+        name = TextDataBase.field(f, 0);
+        ssT2Ip = TextDataBase.field(f, 1);
+        domT1Ip = TextDataBase.field(f, 2);
+        domain = TextDataBase.field(f, 3);
+        ivT2Ip = TextDataBase.field(f, 4);
+        platform = TextDataBase.field(f, 5).toUpperCase();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSsT2Ip() {
+        return ssT2Ip;
+    }
+
+    public String getDomT1Ip() {
+        return domT1Ip;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getIvT2Ip() {
+        return ivT2Ip;
+    }
+
+    /** The platform, upper case. */
+    public String getPlatform() {
+        return platform;
+    }
+
+    /** The line as it was in the file, without the DOMAIN key. */
+    public String toString() {
+        return line;
+    }
+}
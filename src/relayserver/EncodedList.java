@@ -0,0 +1,157 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The lines of a ListDataBase file encoded once, newline terminated, into
+ * fixed size byte chunks, with the offset of every line so that ranges of
+ * lines can be served without decoding. Never modified once built, so any
+ * number of clients can write from the same chunks at once without copying
+ * or allocating per line. Lines can still be read back one at a time,
+ * decoded on demand, so the encoded copy is the only one that need be kept.
+ */
+public class EncodedList {
+
+    private static final int CHUNK = 65536;
+
+    private final byte[][] chunks;
+    private final long[] offsets;  // byte offset of each line, plus the end
+
+    /** Encode the lines (Strings) in the platform charset, as they were read. */
+    public EncodedList(List lines) {
+        offsets = new long[lines.size() + 1];
+        List full = new ArrayList();
+        byte[] chunk = new byte[CHUNK];
+        int used = 0;
+        long total = 0;
+        for (int x = 0 ; x < lines.size() ; x++) {
+            offsets[x] = total;
+            byte[] b = (((String) lines.get(x)) + "\n").getBytes();
+            total += b.length;
+            for (int done = 0 ; done < b.length ;) {
+                int n = Math.min(b.length - done, CHUNK - used);
+                System.arraycopy(b, done, chunk, used, n);
+                done += n;
+                used += n;
+                if (used == CHUNK) {
+                    full.add(chunk);
+                    chunk = new byte[CHUNK];
+                    used = 0;
+                }
+            }
+        }
+        offsets[lines.size()] = total;
+        if (used > 0) {
+            byte[] last = new byte[used];
+            System.arraycopy(chunk, 0, last, 0, used);
+            full.add(last);
+        }
+        chunks = (byte[][]) full.toArray(new byte[full.size()][]);
+    }
+
+    public int lineCount() {
+        return offsets.length - 1;
+    }
+
+    public long byteCount() {
+        return offsets[offsets.length - 1];
+    }
+
+    /** A line, decoded again, without its newline. */
+    public String line(int x) {
+        if (x < 0 || x >= lineCount()) {
+            throw new IndexOutOfBoundsException("line " + x);
+        }
+        long from = offsets[x];
+        byte[] b = new byte[(int) (offsets[x + 1] - from - 1)];
+        for (int done = 0 ; done < b.length ;) {
+            int c = (int) ((from + done) / CHUNK);
+            int off = (int) ((from + done) % CHUNK);
+            int n = Math.min(b.length - done, chunks[c].length - off);
+            System.arraycopy(chunks[c], off, b, done, n);
+            done += n;
+        }
+        return new String(b);
+    }
+
+    /** The lines, decoded one at a time as they are reached. */
+    public Iterator iterator() {
+        return new Iterator() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < lineCount();
+            }
+
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return line(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Write the whole file. */
+    public void writeTo(OutputStream out) throws IOException {
+        for (int x = 0 ; x < chunks.length ; x++) {
+            out.write(chunks[x]);
+        }
+    }
+
+    /**
+     * Write count lines from first; a range past the end is cut short.
+     * @return the number of lines written
+     */
+    public int writeLines(OutputStream out, int first, int count) throws IOException {
+        int end = range(first, count);
+        long from = offsets[Math.min(first, end)];
+        long to = offsets[end];
+        while (from < to) {
+            int c = (int) (from / CHUNK);
+            int off = (int) (from % CHUNK);
+            int n = (int) Math.min(to - from, chunks[c].length - off);
+            out.write(chunks[c], off, n);
+            from += n;
+        }
+        return Math.max(0, end - first);
+    }
+
+    /** Write one page of pageSize lines, pages counting from 0. */
+    public int writePage(OutputStream out, int page, int pageSize) throws IOException {
+        return writeLines(out, page * pageSize, pageSize);
+    }
+
+    /**
+     * Read only views of the chunks holding a range of lines, for writing to
+     * a channel. The buffers share the chunks, so are cheap to make.
+     */
+    public ByteBuffer[] buffers(int first, int count) {
+        int end = range(first, count);
+        long from = offsets[Math.min(first, end)];
+        long to = offsets[end];
+        List l = new ArrayList();
+        while (from < to) {
+            int c = (int) (from / CHUNK);
+            int off = (int) (from % CHUNK);
+            int n = (int) Math.min(to - from, chunks[c].length - off);
+            l.add(ByteBuffer.wrap(chunks[c], off, n).asReadOnlyBuffer());
+            from += n;
+        }
+        return (ByteBuffer[]) l.toArray(new ByteBuffer[l.size()]);
+    }
+
+    /** The line after the last one in range. */
+    private int range(int first, int count) {
+        if (first < 0 || count < 0) {
+            throw new IndexOutOfBoundsException("first " + first + " count " + count);
+        }
+        return (int) Math.min((long) first + count, lineCount());
+    }
+}
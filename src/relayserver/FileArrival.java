@@ -0,0 +1,70 @@
+package relayserver;
+
+import java.io.*;
+
+/**
+ * Waits for a file being written by someone else, e.g. the TFTP server, to
+ * arrive and be complete. The file's directory is watched through the
+ * FileWatchService, so all the waits on one folder share a single watch and
+ * a wait ends as soon as the file is written, rather than at the next poll.
+ * A file is taken to be complete once it has stopped growing for SETTLE ms.
+ * Where the directory can't be watched, or stops being watchable, the file
+ * is polled instead.
+ */
+class FileArrival implements FileWatchService.Listener {
+
+    private static final long SETTLE = 250;
+    private static final long POLL = 1000;
+
+    private final File file;
+    private long changes;
+    private boolean lost; // the watch stopped, poll
+
+    FileArrival(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Wait up to timeout ms for the file to exist and stop growing. Returns
+     * true if it is there.
+     */
+    boolean await(long timeout) throws InterruptedException {
+        boolean watched = FileWatchService.getInstance().register(file, this);
+        long end = System.currentTimeMillis() + timeout;
+        try {
+            synchronized (this) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (now >= end) {
+                        return file.isFile();
+                    }
+                    if (file.isFile() && file.length() > 0) {
+                        long seen = changes;
+                        long len = file.length();
+                        long quiet = Math.min(end, now + SETTLE);
+                        while (changes == seen && (now = System.currentTimeMillis()) < quiet) {
+                            wait(quiet - now);
+                        }
+                        if (changes == seen && file.length() == len) {
+                            return true;
+                        }
+                        continue;
+                    }
+                    wait(watched && !lost ? end - now : Math.min(POLL, end - now));
+                }
+            }
+        } finally {
+            FileWatchService.getInstance().unregister(this);
+        }
+    }
+
+    public synchronized void fileChanged(File f, long changeTime) {
+        changes++;
+        notifyAll();
+    }
+
+    public synchronized void watchLost(File f) {
+        lost = true;
+        notifyAll();
+    }
+}
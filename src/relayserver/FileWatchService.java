@@ -0,0 +1,211 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * One thread watching the files the relay server reloads, in place of a
+ * polling thread per file. Changes are debounced, so a file written in
+ * several goes is only reloaded once it has been quiet for DEBOUNCE ms.
+ * Listeners are told when the first event of the change arrived so they
+ * can log how long the reload took.
+ * Where a file's directory can't be watched (or doesn't exist yet) the
+ * caller is told so, and should fall back to polling. A directory that
+ * stops being watchable later, e.g. because it was deleted, has its
+ * registrations dropped and their listeners told to poll instead.
+ */
+public class FileWatchService implements Runnable {
+
+    /** Told when a registered file changes. Called on the watch thread. */
+    public interface Listener {
+        public void fileChanged(File file, long changeTime);
+
+        /** The file's directory can't be watched any more, poll the file from now on. */
+        public void watchLost(File file);
+    }
+
+    private static final long DEBOUNCE = 200;
+
+    private static FileWatchService instance;
+
+    private final WatchService watcher;
+    private final Map keys = new HashMap();    // WatchKey -> Path of directory
+    private final List registrations = new ArrayList();
+    private final Map pending = new HashMap(); // Registration -> long[] {first event, last event}
+
+    /** A file and who to tell when it changes. */
+    private static class Registration {
+        final Path dir;
+        final Path name;
+        final File file;
+        final Listener listener;
+
+        Registration(Path dir, Path name, File file, Listener listener) {
+            this.dir = dir;
+            this.name = name;
+            this.file = file;
+            this.listener = listener;
+        }
+    }
+
+    private FileWatchService(WatchService watcher) {
+        this.watcher = watcher;
+    }
+
+    /** The shared service, started on first use. */
+    public static synchronized FileWatchService getInstance() {
+        if (instance == null) {
+            WatchService ws = null;
+            try {
+                ws = FileSystems.getDefault().newWatchService();
+            } catch (Exception ex) {
+                System.out.println("File watching not supported, files will be polled: " + ex);
+            }
+            instance = new FileWatchService(ws);
+            if (ws != null) {
+                Thread t = new Thread(instance);
+                t.setName("FileWatchService");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Watch a file. Returns false if it can't be watched, in which case the
+     * caller must poll it itself.
+     */
+    public boolean register(File file, Listener listener) {
+        if (watcher == null) {
+            return false;
+        }
+        Path path = file.getAbsoluteFile().toPath();
+        Path dir = path.getParent();
+        try {
+            WatchKey key = dir.register(watcher, new WatchEvent.Kind[] {
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE });
+            synchronized (this) {
+                keys.put(key, dir);
+                registrations.add(new Registration(dir, path.getFileName(), file, listener));
+            }
+            return true;
+        } catch (Exception ex) {
+            System.out.println("Can't watch " + dir + ", it will be polled: " + ex);
+            return false;
+        }
+    }
+
+    /** Stop telling the listener about changes. */
+    public synchronized void unregister(Listener listener) {
+        for (Iterator i = registrations.iterator(); i.hasNext();) {
+            Registration r = (Registration) i.next();
+            if (r.listener == listener) {
+                i.remove();
+                pending.remove(r);
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            boolean idle;
+            synchronized (this) {
+                idle = pending.isEmpty();
+            }
+            try {
+                key = idle ? watcher.take()
+                      : watcher.poll(DEBOUNCE, java.util.concurrent.TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                continue;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (key != null) {
+                synchronized (this) {
+                    Path dir = (Path) keys.get(key);
+                    List events = key.pollEvents();
+                    for (Iterator i = events.iterator(); i.hasNext();) {
+                        WatchEvent ev = (WatchEvent) i.next();
+                        Path name = ev.kind() == StandardWatchEventKinds.OVERFLOW ? null : (Path) ev.context();
+                        changed(dir, name, now);
+                    }
+                }
+                if (!key.reset()) {
+                    lost(key);
+                }
+            }
+            fireQuiet(now);
+        }
+    }
+
+    /** Drop the registrations of a directory no longer watched and tell their listeners. */
+    private void lost(WatchKey key) {
+        List dropped = new ArrayList();
+        Path dir;
+        synchronized (this) {
+            dir = (Path) keys.remove(key);
+            for (Iterator i = registrations.iterator(); i.hasNext();) {
+                Registration r = (Registration) i.next();
+                if (r.dir.equals(dir)) {
+                    i.remove();
+                    pending.remove(r);
+                    dropped.add(r);
+                }
+            }
+        }
+        System.out.println("Can't watch " + dir + " any more, its files will be polled");
+        for (Iterator i = dropped.iterator(); i.hasNext();) {
+            Registration r = (Registration) i.next();
+            try {
+                r.listener.watchLost(r.file);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /** Note a change in dir, to name or (if null) to anything in it. */
+    private void changed(Path dir, Path name, long now) {
+        for (Iterator i = registrations.iterator(); i.hasNext();) {
+            Registration r = (Registration) i.next();
+            if (r.dir.equals(dir) && (name == null || r.name.equals(name))) {
+                long[] times = (long[]) pending.get(r);
+                if (times == null) {
+                    pending.put(r, new long[] { now, now });
+                } else {
+                    times[1] = now;
+                }
+            }
+        }
+    }
+
+    /** Tell the listeners of files that have been quiet long enough. */
+    private void fireQuiet(long now) {
+        List due = new ArrayList();
+        synchronized (this) {
+            for (Iterator i = pending.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                long[] times = (long[]) e.getValue();
+                if (now - times[1] >= DEBOUNCE) {
+                    due.add(new Object[] { e.getKey(), Long.valueOf(times[0]) });
+                    i.remove();
+                }
+            }
+        }
+        for (Iterator i = due.iterator(); i.hasNext();) {
+            Object[] d = (Object[]) i.next();
+            Registration r = (Registration) d[0];
+            try {
+                r.listener.fileChanged(r.file, ((Long) d[1]).longValue());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLSocket;
+import common.Logger;
+import common.RelayRequest;
+import common.RelayReply;
+
+/**
+ * First stage of a thread mode session: runs the TLS handshake, then reads
+ * and decodes the relay request on a small pool of its own, with an overall
+ * deadline (the socket is closed when it passes, even mid handshake), and
+ * only passes complete, version checked requests on to the
+ * relay stage. A client that
+ * trickles its request ties up a handshake thread for at most the deadline,
+ * never a relay worker.
+ * Settings from the ini file:
+ * RELAYHANDSHAKETHREADS - size of the pool (default 16).
+ * RELAYHANDSHAKEQUEUE - connections waiting for the pool (default 100).
+ * RELAYREQUESTTIMEOUT - ms allowed for the whole request (default 10000).
+ */
+public class HandshakeStage {
+
+    /** Receives the requests that made it through the handshake. */
+    public interface Handoff {
+        public void requestReceived(Socket sock, RelayRequest rrq, ByteBuffer leftover);
+    }
+
+    private static final int READ_SIZE = 1024;
+
+    private final Logger logger;
+    private final String relayCompatibilityVersion;
+    private final Handoff handoff;
+    private final AdmissionController admission;
+    private final TlsSessions tls;
+    private final long timeout;
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(RelayThreads.factory("RelayHandshakeTimer"));
+
+    public HandshakeStage(Properties props, Logger logger, String relayCompatibilityVersion,
+                          AdmissionController admission, TlsSessions tls, Handoff handoff) {
+        this.tls = tls;
+        this.logger = logger;
+        this.relayCompatibilityVersion = relayCompatibilityVersion;
+        this.admission = admission;
+        this.handoff = handoff;
+        timeout = IniProperties.getLong(props, "RELAYREQUESTTIMEOUT", 10000);
+        int threads = IniProperties.getInt(props, "RELAYHANDSHAKETHREADS", 16);
+        int queue = IniProperties.getInt(props, "RELAYHANDSHAKEQUEUE", 100);
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue(Math.max(1, queue)), RelayThreads.factory("RelayHandshake"));
+        pool.allowCoreThreadTimeOut(true);
+        RelayMetrics.gauge("handshake.queued", new RelayMetrics.Gauge() {
+            public long value() {
+                return pool.getQueue().size();
+            }
+        });
+    }
+
+    /** Queue an accepted socket for its handshake, or turn it away if full. */
+    public void submit(final Socket sock) {
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    handshake(sock);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            admission.reject(sock, AdmissionController.BUSY);
+        }
+    }
+
+    private void handshake(final Socket sock) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        RelayRequestDecoder decoder = new RelayRequestDecoder();
+        byte[] buf = new byte[READ_SIZE];
+        RelayRequest rrq = null;
+        // read timeouts only bound each read, this bounds the whole exchange
+        final AtomicBoolean expired = new AtomicBoolean();
+        Future deadlineTask = timer.schedule(new Runnable() {
+            public void run() {
+                expired.set(true);
+                common.IoUtil.close(sock);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            if (sock instanceof SSLSocket) {
+                // handshake explicitly so it can be timed, and never on the accept thread
+                sock.setSoTimeout((int) timeout);
+                long hsStart = System.currentTimeMillis();
+                ((SSLSocket) sock).startHandshake();
+                tls.handshakeDone(((SSLSocket) sock).getSession(), hsStart);
+            }
+            InputStream in = sock.getInputStream();
+            while (rrq == null) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for relay request");
+                }
+                sock.setSoTimeout((int) left);
+                int n = in.read(buf);
+                if (n == -1) {
+                    throw new EOFException("Client closed before sending relay request");
+                }
+                decoder.append(buf, 0, n);
+                rrq = decoder.decode();
+            }
+            if (!deadlineTask.cancel(false)) {
+                throw new SocketTimeoutException("Timed out waiting for relay request");
+            }
+            sock.setSoTimeout(0);
+            logger.log(rrq.toString());
+            //check version compatability. 0 means dont check
+            String compat = RelayConfig.current().getCompatibilityVersion(relayCompatibilityVersion);
+            if (!compat.equals("0") &&
+                !rrq.isVersionCompatable(compat)) {
+                throw new Exception("Client version incompatible with relay server");
+            }
+        } catch (Exception ex) {
+            deadlineTask.cancel(false);
+            RelayMetrics.counter("handshake.failed").incrementAndGet();
+            if (expired.get()) {
+                RelayMetrics.counter("handshake.expired").incrementAndGet();
+                logger.log("Exception occured: timed out waiting for relay request (" + ex + ")");
+                return;
+            }
+            logger.log("Exception occured " + ex);
+            try {
+                String s = ex.getMessage();
+                if (s == null || s.length() == 0) {
+                    s = ex.toString();
+                }
+                new RelayReply(false, s).write(sock.getOutputStream());
+            } catch (Exception ex2) {
+            }
+            common.IoUtil.close(sock);
+            return;
+        }
+        RelayMetrics.counter("handshake.completed").incrementAndGet();
+        RelayMetrics.counter("handshake.totalms").addAndGet(System.currentTimeMillis() - start);
+        handoff.requestReceived(sock, rrq, decoder.remaining());
+    }
+
+    public void close() {
+        pool.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,54 @@
+package relayserver;
+
+import java.util.Properties;
+
+/**
+ * Typed reads of optional settings from TelnetRelayServer.ini. A missing or
+ * unparseable value gives the default.
+ */
+public class IniProperties {
+
+    private IniProperties() {
+    }
+
+    public static String getString(Properties props, String name, String defaultValue) {
+        String s = props.getProperty(name);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        return s.trim();
+    }
+
+    public static int getInt(Properties props, String name, int defaultValue) {
+        String s = props.getProperty(name);
+        if (s == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(Properties props, String name, long defaultValue) {
+        String s = props.getProperty(name);
+        if (s == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(Properties props, String name, boolean defaultValue) {
+        String s = props.getProperty(name);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        s = s.trim();
+        return s.equalsIgnoreCase("Y") || s.equalsIgnoreCase("YES") || s.equalsIgnoreCase("TRUE");
+    }
+}
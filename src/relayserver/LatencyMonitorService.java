@@ -0,0 +1,279 @@
+package relayserver;
+
+import java.util.*;
+import java.util.concurrent.*;
+import common.Constants;
+import ping.PingStats;
+import ping.ProbeEngine;
+
+/**
+ * Pings the devices of a TextDataBase continuously, so that PING requests
+ * for them can be answered at once from recent results instead of running
+ * a probe of their own. Each round probes every device (by platform and IP
+ * address) once, spread evenly over the round so there are no bursts; the
+ * probes are made by the ProbeEngine, so thousands of devices cost one
+ * thread. The results of the last LATENCYWINDOW seconds are kept for each
+ * device and summarised by PingStats when asked for. A PING request is
+ * only answered from them while the device's last result is less than a
+ * round old.
+ * The config is the TextDataBase file name (default TelnetRelayDB.txt),
+ * whose shared instance is used.
+ * Settings from the ini file:
+ * LATENCYPLATFORMS - platforms to monitor, comma separated (default all).
+ * LATENCYINTERVAL - seconds between rounds (default 300).
+ * LATENCYWINDOW - seconds of results kept and reported (default 900).
+ * LATENCYPROBES - probes to each device each round (default 3).
+ * LATENCYENGINE - TCP or ICMP (default TCP).
+ * LATENCYPORT - port for TCP probes (default 23).
+ * LATENCYTIMEOUT - ms to wait for an answer (default 1000).
+ * LATENCYMAXRUNS - devices being probed at once, more are skipped (default 1000).
+ */
+public class LatencyMonitorService implements serviceman.Service, Runnable {
+
+    private static final String DBFILE = "TelnetRelayDB.txt";
+    private static final int PROBE_GAP = 200;  // ms between the probes of a run
+
+    private static volatile LatencyMonitorService running;
+
+    private String name = "Latency Monitor";
+    private TextDataBase db;
+    private final Map targets = new ConcurrentHashMap(); // platform|ip -> Target
+    private Semaphore runs;
+    private Set platforms;      // null for all
+    private long interval;
+    private long window;
+    private int probes;
+    private int method;
+    private int port;
+    private int timeout;
+    private volatile boolean closed;
+    private volatile boolean isRunning;
+    private Thread myThread;
+
+    /** The results kept for one address, oldest first from next. */
+    private static class Target {
+        final String ip;
+        final long[] at;        // when each result came in
+        final double[] ms;      // round trip, NaN if lost
+        int next;
+        int size;
+
+        Target(String ip, int capacity) {
+            this.ip = ip;
+            at = new long[capacity];
+            ms = new double[capacity];
+        }
+
+        /** When the last result came in, 0 if none has. */
+        synchronized long latest() {
+            return size == 0 ? 0 : at[(next - 1 + at.length) % at.length];
+        }
+
+        synchronized void add(long now, double[] times, int lost) {
+            for (int x = 0 ; x < times.length + lost ; x++) {
+                at[next] = now;
+                ms[next] = x < times.length ? times[x] : Double.NaN;
+                next = (next + 1) % at.length;
+                size = Math.min(size + 1, at.length);
+            }
+        }
+
+        /** The results since a time, or null if there are none. */
+        synchronized PingStats since(long from) {
+            double[] times = new double[size];
+            int n = 0;
+            int lost = 0;
+            for (int x = 0 ; x < size ; x++) {
+                int i = (next - size + x + at.length) % at.length;
+                if (at[i] < from) {
+                    continue;
+                }
+                if (Double.isNaN(ms[i])) {
+                    lost++;
+                } else {
+                    times[n++] = ms[i];
+                }
+            }
+            if (n + lost == 0) {
+                return null;
+            }
+            double[] t = new double[n];
+            System.arraycopy(times, 0, t, 0, n);
+            return new PingStats(ip, t, lost);
+        }
+    }
+
+    /** The running monitor, or null. */
+    public static LatencyMonitorService getRunning() {
+        return running;
+    }
+
+    public void start(String name, String config, serviceman.Finder finder) throws Exception {
+        this.name = name;
+        Properties props = Constants.properties;
+        String list = IniProperties.getString(props, "LATENCYPLATFORMS", "");
+        if (list.length() > 0) {
+            platforms = new HashSet();
+            String[] p = common.IoUtil.split(list, ',');
+            for (int x = 0 ; x < p.length ; x++) {
+                platforms.add(p[x].trim().toUpperCase());
+            }
+        }
+        interval = Math.max(1, IniProperties.getLong(props, "LATENCYINTERVAL", 300)) * 1000;
+        window = IniProperties.getLong(props, "LATENCYWINDOW", 900) * 1000;
+        probes = Math.max(1, IniProperties.getInt(props, "LATENCYPROBES", 3));
+        method = IniProperties.getString(props, "LATENCYENGINE", "TCP").equalsIgnoreCase("ICMP")
+                 ? ProbeEngine.ICMP : ProbeEngine.TCP;
+        port = IniProperties.getInt(props, "LATENCYPORT", 23);
+        timeout = IniProperties.getInt(props, "LATENCYTIMEOUT", 1000);
+        runs = new Semaphore(IniProperties.getInt(props, "LATENCYMAXRUNS", 1000));
+        String file = config == null || config.trim().length() == 0 ? DBFILE : config.trim();
+        db = TextDataBase.getShared(file);
+        RelayMetrics.gauge("latency.targets", new RelayMetrics.Gauge() {
+            public long value() {
+                return targets.size();
+            }
+        });
+        isRunning = true;
+        running = this;
+        myThread = RelayThreads.start(this, "LatencyMonitor");
+    }
+
+    public void run() {
+        try {
+            ProbeEngine engine = ProbeEngine.getInstance();
+            while (!closed) {
+                long start = System.currentTimeMillis();
+                List keys = refreshTargets();
+                for (int x = 0 ; x < keys.size() && !closed ; x++) {
+                    // spread the round's probes evenly over the interval
+                    pause(start + interval * x / keys.size());
+                    final Target t = (Target) targets.get(keys.get(x));
+                    if (t == null || !runs.tryAcquire()) {
+                        RelayMetrics.counter("latency.skipped").incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        engine.probe(t.ip, null, method, port, probes, timeout, PROBE_GAP,
+                            new ProbeEngine.Listener() {
+                                public void done(String target, PingStats stats) {
+                                    probed(t, stats);
+                                }
+                            });
+                    } catch (Exception ex) {
+                        runs.release();
+                        RelayMetrics.counter("latency.errors").incrementAndGet();
+                    }
+                }
+                pause(start + interval);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            isRunning = false;
+        }
+    }
+
+    /** Sleep until a time, or until closed. */
+    private void pause(long until) {
+        long wait;
+        while (!closed && (wait = until - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(wait, 1000));
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bring the targets into line with the database, returning the keys to
+     * probe this round.
+     */
+    private List refreshTargets() {
+        // enough room for the results of a window, and a round to spare
+        int capacity = (int) ((window + interval - 1) / interval + 1) * probes;
+        Set keys = new LinkedHashSet();
+        List doms;
+        if (platforms == null) {
+            doms = db.domainList();
+        } else {
+            doms = new ArrayList();
+            for (Iterator p = platforms.iterator(); p.hasNext();) {
+                doms.addAll(db.domainsByPlatform((String) p.next()));
+            }
+        }
+        for (int d = 0 ; d < doms.size() ; d++) {
+            Domain dom = (Domain) doms.get(d);
+            List devs = db.deviceList(dom.getName());
+            for (int x = 0 ; devs != null && x < devs.size() ; x++) {
+                String ip = ((Device) devs.get(x)).getIp();
+                String key = dom.getPlatform() + "|" + ip;
+                if (ip.length() > 0 && keys.add(key) && !targets.containsKey(key)) {
+                    targets.put(key, new Target(ip, capacity));
+                }
+            }
+        }
+        targets.keySet().retainAll(keys);
+        return new ArrayList(keys);
+    }
+
+    /** A probe run finished, on the ProbeEngine thread. */
+    private void probed(Target t, PingStats stats) {
+        runs.release();
+        RelayMetrics.counter("latency.probes").addAndGet(stats.getNumVals() + stats.getNumLost());
+        RelayMetrics.counter("latency.lost").addAndGet(stats.getNumLost());
+        double[] times = stats.getTimes();
+        for (int x = 0 ; x < times.length ; x++) {
+            RelayMetrics.histogram("latency.rtt.ms").record((long) times[x]);
+        }
+        t.add(System.currentTimeMillis(), times, stats.getNumLost());
+    }
+
+    /**
+     * The stats of the last window for a device, or null if it isn't
+     * monitored or has no recent results.
+     */
+    public PingStats getStats(String platform, String ip) {
+        Target t = (Target) targets.get(platform.toUpperCase() + "|" + ip);
+        return t == null ? null : t.since(System.currentTimeMillis() - window);
+    }
+
+    /**
+     * Ping output for a device made from its recent results, like that of
+     * the ProbeEngine, or null if there are none or the last is more than a
+     * round (LATENCYINTERVAL) old, so the device may have changed since.
+     */
+    public String report(String platform, String ip) {
+        Target t = (Target) targets.get(platform.toUpperCase() + "|" + ip);
+        long now = System.currentTimeMillis();
+        if (t == null || t.latest() < now - interval) {
+            RelayMetrics.counter("latency.stale").incrementAndGet();
+            return null;
+        }
+        PingStats ps = t.since(now - window);
+        if (ps == null) {
+            return null;
+        }
+        StringBuffer sb = new StringBuffer(ProbeEngine.header(ip));
+        double[] times = ps.getTimes();
+        for (int x = 0 ; x < times.length ; x++) {
+            sb.append(ProbeEngine.reply(ip, times[x]));
+        }
+        return sb.append("\n").append(ps.toString()).append(ps.toPercentileString()).toString();
+    }
+
+    public void close() {
+        closed = true;
+        if (running == this) {
+            running = null;
+        }
+        if (myThread != null) {
+            myThread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+}
@@ -5,74 +5,49 @@ import java.net.*;
 import common.IoUtil;
 
 /**
- * This class caches a file as an array list to served to clients
+ * This class caches a file to be served to clients. Each load is encoded
+ * once into an EncodedList, which is all that is kept: clients should
+ * stream from it (whole or a page at a time), iterator() decodes the lines
+ * again for those that still walk them.
  */
 
-public class ListDataBase implements Runnable
+public class ListDataBase
 {
     private String fileName;
-    private volatile boolean closed; // flag to kill the thread
-    private long lastFileLoad = -1;
-    private List fileList = null;
-    private volatile Thread myThread;
+    private volatile EncodedList encoded = null; // replaced on reload, never modified
+    private final ReloadableFile file;
 
   public ListDataBase(String filename) {
         fileName = filename;
-        new Thread(this).start();
+        file = new ReloadableFile(fileName, "ListDataBase file watcher", new ReloadableFile.Loader() {
+            public boolean load() {
+                return readFile();
+            }
+        });
+        file.start();
     }
-    /** Read the database file only if it has been modified. */
-    private void readFile() {
-        File f = new File(fileName);
-        long lastMod = f.lastModified();
-        if(lastFileLoad == lastMod) {
-            return;
-        }
-        List newList = null;
+    /** Read the database file. */
+    private boolean readFile() {
         try {
-            newList = IoUtil.readFileLines(fileName);
-            synchronized(this) {
-                lastFileLoad = lastMod;
-                fileList = newList;
-            }
-            System.out.println(dateTime() + " File loaded: " + fileName);
+            encoded = new EncodedList(IoUtil.readFileLines(fileName));
+            System.out.println(ReloadableFile.dateTime() + " File loaded: " + fileName);
+            return true;
         } catch(Exception ex) {
-            System.out.println(dateTime() + " Can't read database file: " + fileName);
+            System.out.println(ReloadableFile.dateTime() + " Can't read database file: " + fileName);
             ex.printStackTrace();
         }
+        return false;
     }
     /** return an iterator for the list. */
-    public synchronized Iterator iterator() {
-        return fileList.iterator();
-    }
-    /**
-     * Infinite loop checking the file date once a minute. 
-     * re-reads the file if changed.
-     */
-    public void run() {
-        if(myThread != null) {
-            throw new RuntimeException("Thread already running!");
-        }
-        myThread = Thread.currentThread();
-        myThread.setName("ListDataBase file watcher");
-        while(!closed) {
-            readFile();
-            try {
-                Thread.sleep(60000);
-            } catch(InterruptedException ie) {
-            }
-        }
+    public Iterator iterator() {
+        return encoded.iterator();
     }
-    private String dateTime() {
-        long now = System.currentTimeMillis();
-        java.sql.Date d = new java.sql.Date(now);
-        java.sql.Time t = new java.sql.Time(now);
-        return d + " " + t;
+    /** The file encoded for streaming, null until it has been loaded. */
+    public EncodedList encoded() {
+        return encoded;
     }
-    
+    /** Stop watching the file. */
     public void close() {
-        closed = true;
-        if(myThread != null) {
-            myThread.interrupt();
-        }
+        file.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import common.Constants;
+import common.RelayRequest;
+import common.RelayHelper;
+import common.RelayHelperln;
+import ping.ProbeEngine;
+import ping.TraceRoutePingConverter;
+
+/**
+ * The host side of a request that is serviced on the relay server itself
+ * rather than relayed onward: a PING or TRACEROUTE process (or a ping from
+ * the ProbeEngine), or a config collection. Pulled out of RelayWorker so
+ * that both relay engines set these up the same way.
+ */
+public class LocalRequest {
+
+    private Process process;
+    private InputStream hostIn;
+    private BufferedReader hostErr;
+    private OutputStream hostOut;
+    private final RelayRequest rrq;
+
+    private static final int MAX_PROBES = 1000;
+
+    /** Where client input goes when there is no process to send it to. */
+    private static final OutputStream DISCARD = new OutputStream()
+    {
+      public void write(int b)
+      {
+      }
+    };
+
+    private LocalRequest(RelayRequest rrq) {
+        this.rrq = rrq;
+    }
+
+    /** True if the request is serviced locally rather than relayed. */
+    public static boolean isLocal(RelayRequest rrq) {
+        return rrq.appName.equals("PING") || rrq.appName.equals("TRACEROUTE")
+               || rrq.appName.equals("CONFIG");
+    }
+
+    /**
+     * Start the local work for a request. Throws if the request can't be
+     * serviced, the message being suitable for a RelayReply.
+     * PING and TRACEROUTE runs are shared with identical requests through
+     * the DiagnosticCoalescer, and a PING of a device the
+     * LatencyMonitorService watches is answered from its recent results.
+     * @param client the requesting client's address, processes being
+     * shared out fairly between clients
+     */
+    public static LocalRequest open(final RelayRequest rrq, final Constants constants,
+                                    final String client) throws Exception {
+        LocalRequest lr = new LocalRequest(rrq);
+        if (rrq.appName.equals("CONFIG"))
+        {
+          lr.hostIn = new ConfigCollectorStream(rrq, constants);
+          lr.hostOut = System.out;
+          return lr;
+        }
+        // the settings in use, kept for the whole request
+        final RelayConfig config = RelayConfig.current();
+        // a plain PING of a monitored device is answered from its recent results
+        LatencyMonitorService monitor = LatencyMonitorService.getRunning();
+        if (monitor != null && rrq.appName.equals("PING") && rrq.options == null)
+        {
+          String report = monitor.report(rrq.platform, rrq.relayDstIp);
+          if (report != null)
+          {
+            lr.hostIn = new ByteArrayInputStream(report.getBytes());
+            lr.hostOut = DISCARD;
+            return lr;
+          }
+        }
+        DiagnosticCoalescer dc = DiagnosticCoalescer.getInstance(config.getProperties());
+        if (!dc.isEnabled())
+        {
+          return start(rrq, config, client);
+        }
+        // identical requests share one run, so this request has no process of its own
+        long timeout = DiagnosticExecutor.getInstance(config.getProperties()).getTimeout(rrq.appName);
+        InputStream[] in = dc.subscribe(rrq.platform + "|" + rrq.appName + "|" + rrq.relaySrcIp + "|"
+                                        + rrq.relayDstIp + "|" + rrq.options, timeout,
+            new DiagnosticCoalescer.Source()
+            {
+              private LocalRequest run;
+
+              public InputStream[] open() throws Exception
+              {
+                run = start(rrq, config, client);
+                common.IoUtil.close(run.hostOut);
+                // the converter reads the error output itself
+                InputStream err = null;
+                if (run.process != null && !(run.hostIn instanceof TraceRoutePingConverter))
+                {
+                  err = run.process.getErrorStream();
+                }
+                return new InputStream[] { run.hostIn, err };
+              }
+
+              public void stop()
+              {
+                run.close();
+              }
+            });
+        lr.hostIn = in[0];
+        if (in[1] != null)
+        {
+          lr.hostErr = new BufferedReader(new InputStreamReader(in[1]));
+        }
+        lr.hostOut = DISCARD;
+        return lr;
+    }
+
+    /** Start a PING or TRACEROUTE run for a request. */
+    private static LocalRequest start(RelayRequest rrq, RelayConfig config, String client) throws Exception {
+        LocalRequest lr = new LocalRequest(rrq);
+        RelayConfig.Platform platform = config.platform(rrq.platform);
+        if (rrq.appName.equals("PING") && openProbe(lr, rrq, platform))
+        {
+          return lr;
+        }
+        CommandTemplate template = platform.getCommand(rrq.appName);
+        if (template == null)
+             throw new Exception(rrq.appName+
+                 " COMMAND not defined for "+rrq.platform);
+        /*
+         * substitute parameters into command. Options naming a <placeholder>
+         * are filled into the parsed template, anything else is replaced in
+         * the command text as before (and that command parsed in turn).
+         */
+        Map values = new HashMap();
+        if (rrq.options != null)
+        {
+          CommandTemplate raw = template;
+          String cmd = raw.getCommand();
+          String options[] = common.IoUtil.split(rrq.options,',');
+          for (int i=0;i<options.length;i++)
+          {
+            String opt[] = common.IoUtil.split(options[i],'=');
+            if (raw.hasPlaceholder(opt[0]))
+            {
+              values.put(opt[0], opt[1]);
+            }else
+            {
+              cmd = common.IoUtil.replace(cmd,opt[0],opt[1]);
+            }
+          }
+          if (!cmd.equals(raw.getCommand()))
+          {
+            template = CommandTemplate.get(cmd);
+          }
+        }
+        values.put("<DESTIP>", rrq.relayDstIp);
+        values.put("<SOURCEIP>", rrq.relaySrcIp);
+
+        lr.process = DiagnosticExecutor.getInstance(config.getProperties())
+                .start(rrq.appName, client, template.expand(values));
+        lr.hostErr = new BufferedReader(new InputStreamReader(lr.process.getErrorStream()));
+        /*
+         * at the time of writing, ping on vcms was implemented via
+         * traceroute. The output from traceroute is converted to look
+         * like ping. The test allows switching to ping by simply changing
+         * the command in the ini file (if we ever get a ping that works
+         * on vcms.)
+         */
+        if (rrq.platform.equals("VCMS") && rrq.appName.equals("PING")&&
+            (template.getProgram().startsWith("/usr/sbin/traceroute") |
+             template.getProgram().startsWith("tracert")))
+        {
+          lr.hostIn = new TraceRoutePingConverter(lr.process.getInputStream(), lr.process.getErrorStream());
+        }else
+        {
+          lr.hostIn = lr.process.getInputStream();
+        }
+        lr.hostOut = lr.process.getOutputStream();
+        return lr;
+    }
+
+    /**
+     * Ping from the JVM if <platform>PINGENGINE is TCP or ICMP, rather than
+     * running the PING command. Returns false to run the command.
+     * <platform>PINGCOUNT - probes (default 4, or a <COUNT> option).
+     * <platform>PINGTIMEOUT - ms to wait for an answer (default 1000).
+     * <platform>PINGINTERVAL - ms between probes (default 1000).
+     * <platform>PINGPORT - port for TCP probes (default 23).
+     */
+    private static boolean openProbe(LocalRequest lr, RelayRequest rrq, RelayConfig.Platform platform) throws IOException {
+        int method = platform.getPingMethod();
+        if (method == -1)
+        {
+          return false;
+        }
+        int count = platform.getPingCount();
+        if (rrq.options != null)
+        {
+          String options[] = common.IoUtil.split(rrq.options,',');
+          for (int i=0;i<options.length;i++)
+          {
+            String opt[] = common.IoUtil.split(options[i],'=');
+            if (opt.length > 1 && opt[0].equals("<COUNT>"))
+            {
+              try
+              {
+                count = Integer.parseInt(opt[1].trim());
+              }catch (NumberFormatException ex)
+              {
+              }
+            }
+          }
+        }
+        lr.hostIn = ProbeEngine.getInstance().ping(rrq.relayDstIp, rrq.relaySrcIp, method,
+                platform.getPingPort(),
+                Math.max(1, Math.min(count, MAX_PROBES)),
+                platform.getPingTimeout(),
+                platform.getPingInterval());
+        lr.hostOut = DISCARD;
+        return true;
+    }
+
+    /** Create the helper that copies the local output to the client. */
+    public RelayHelper hostToClient(OutputStream clientOut) {
+        if (rrq.appName.equals("TRACEROUTE") && hostErr != null)
+        {
+            return new RelayHelperln(hostIn, clientOut, hostErr);
+        }
+        return new RelayHelper(hostIn, clientOut);
+    }
+
+    /** Create the helper that copies client input to the local request. */
+    public RelayHelper clientToHost(InputStream clientIn) {
+        return new RelayHelper(clientIn, hostOut, process);
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    public InputStream getHostIn() {
+        return hostIn;
+    }
+
+    public BufferedReader getHostErr() {
+        return hostErr;
+    }
+
+    public OutputStream getHostOut() {
+        return hostOut;
+    }
+
+    /** Kill any process and release the streams. */
+    public void close() {
+        if (process != null) {
+            process.destroy();
+        }
+        common.IoUtil.close(hostIn);
+        common.IoUtil.close(hostErr);
+        if (hostOut != System.out) {
+            common.IoUtil.close(hostOut);
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Compiled, memory mapped form of the TextDataBase file, written alongside
+ * it and queried in place, so a restart doesn't have to read and tokenise
+ * the text and the lines stay off the heap.
+ * Each compile is a new generation, TelnetRelayDB.txt.<n>.bin, as a file
+ * can't be replaced while it is mapped on Windows and Java can't unmap it;
+ * older generations are deleted once that succeeds, i.e. once unmapped.
+ * The header records the text file's date and length, a snapshot that
+ * doesn't match them (or whose tables don't fit the file) is ignored; the
+ * text file is always the source of truth.
+ * Layout, all ints big endian:
+ * header, domain table, device table, domain name hash, device name hash,
+ * device ip hash, device indexes sorted by name, then the UTF-8 strings.
+ * Domain records are line, name, first device, device count; device records
+ * are line, name, ip, domain. Strings are (offset, length) pairs into the
+ * string area. The hashes are open addressed tables of record index + 1.
+ * Domains are written in file order, a repeated DOMAIN block included;
+ * the name hashes hold the last record of each name, as the heap indexes
+ * do, so a later domain or device replaces an earlier one of the same name
+ * while the earlier block's other devices can still be found.
+ */
+class MappedTextDB {
+
+    private static final int MAGIC = 0x54524442;   // TRDB
+    private static final int VERSION = 2;
+    private static final int HEADER = 80;
+    private static final int DOM_REC = 24;
+    private static final int DEV_REC = 28;
+
+    private final File file;
+    private final ByteBuffer buf;
+    private final int nDomains;
+    private final int nDevices;
+    private final int domTable;
+    private final int devTable;
+    private final int domHash;
+    private final int domHashSize;
+    private final int devHash;
+    private final int devHashSize;
+    private final int ipHash;
+    private final int ipHashSize;
+    private final int sorted;
+    private final int strings;
+
+    private MappedTextDB(File file, ByteBuffer buf) {
+        this.file = file;
+        this.buf = buf;
+        nDomains = buf.getInt(24);
+        nDevices = buf.getInt(28);
+        domTable = buf.getInt(32);
+        devTable = buf.getInt(36);
+        domHash = buf.getInt(40);
+        domHashSize = buf.getInt(44);
+        devHash = buf.getInt(48);
+        devHashSize = buf.getInt(52);
+        ipHash = buf.getInt(56);
+        ipHashSize = buf.getInt(60);
+        sorted = buf.getInt(64);
+        strings = buf.getInt(68);
+    }
+
+    /** The newest generation of snapshot of the text file, mapped, or null. */
+    static MappedTextDB openLatest(File src) {
+        File[] gens = generations(src);
+        return gens.length == 0 ? null : open(gens[gens.length - 1], src);
+    }
+
+    /** The file to write the next generation of snapshot to. */
+    static File nextGeneration(File src) {
+        File[] gens = generations(src);
+        long n = gens.length == 0 ? 1 : generation(gens[gens.length - 1], src) + 1;
+        return new File(src.getAbsoluteFile().getParentFile(), src.getName() + "." + n + ".bin");
+    }
+
+    /**
+     * Delete the snapshots of the text file other than keep. One still
+     * mapped can't be deleted on Windows, it is tried again next time.
+     */
+    static void deleteOld(File src, File keep) {
+        File[] gens = generations(src);
+        for (int x = 0 ; x < gens.length ; x++) {
+            if (!gens[x].equals(keep)) {
+                gens[x].delete();
+            }
+        }
+        new File(src.getPath() + ".bin").delete(); // from before generations
+    }
+
+    /** The snapshot files of the text file, oldest first. */
+    private static File[] generations(File src) {
+        File dir = src.getAbsoluteFile().getParentFile();
+        File[] all = dir == null ? null : dir.listFiles();
+        List gens = new ArrayList();
+        for (int x = 0 ; all != null && x < all.length ; x++) {
+            if (generation(all[x], src) > 0) {
+                gens.add(all[x]);
+            }
+        }
+        final File s = src;
+        Collections.sort(gens, new Comparator() {
+            public int compare(Object a, Object b) {
+                long ga = generation((File) a, s);
+                long gb = generation((File) b, s);
+                return ga < gb ? -1 : ga == gb ? 0 : 1;
+            }
+        });
+        return (File[]) gens.toArray(new File[gens.size()]);
+    }
+
+    /** The generation number of a snapshot file name, or -1 if it isn't one. */
+    private static long generation(File bin, File src) {
+        String name = bin.getName();
+        String prefix = src.getName() + ".";
+        if (!name.startsWith(prefix) || !name.endsWith(".bin")
+                || name.length() <= prefix.length() + 4) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - 4));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Map a snapshot. Returns null if it is missing, unreadable, damaged or
+     * was not compiled from the current version of the text file.
+     */
+    static MappedTextDB open(File bin, File src) {
+        if (!bin.isFile() || !src.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(bin, "r");
+            FileChannel ch = raf.getChannel();
+            if (ch.size() < HEADER || ch.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (b.getInt(0) != MAGIC || b.getInt(4) != VERSION
+                    || b.getLong(8) != src.lastModified() || b.getLong(16) != src.length()) {
+                return null;
+            }
+            MappedTextDB m = new MappedTextDB(bin, b);
+            return m.isValid() ? m : null;
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            common.IoUtil.close(raf);   // the mapping outlives the channel
+        }
+    }
+
+    /**
+     * Check every table lies where the writer puts it, inside the file, and
+     * every record's strings and indexes are in range, so a truncated or
+     * damaged snapshot can't be read out of bounds.
+     */
+    private boolean isValid() {
+        long cap = buf.capacity();
+        if (nDomains < 0 || nDevices < 0 || !tableSize(domHashSize, nDomains)
+                || !tableSize(devHashSize, nDevices) || !tableSize(ipHashSize, nDevices)
+                || domTable != HEADER
+                || devTable != domTable + (long) nDomains * DOM_REC
+                || domHash != devTable + (long) nDevices * DEV_REC
+                || devHash != domHash + (long) domHashSize * 4
+                || ipHash != devHash + (long) devHashSize * 4
+                || sorted != ipHash + (long) ipHashSize * 4
+                || strings != sorted + (long) nDevices * 4
+                || strings > cap) {
+            return false;
+        }
+        long strSize = cap - strings;
+        for (int x = 0 ; x < nDomains ; x++) {
+            int r = domTable + x * DOM_REC;
+            if (!stringFits(r, strSize) || !stringFits(r + 8, strSize)
+                    || buf.getInt(r + 16) < 0 || buf.getInt(r + 20) < 0
+                    || (long) buf.getInt(r + 16) + buf.getInt(r + 20) > nDevices) {
+                return false;
+            }
+        }
+        for (int x = 0 ; x < nDevices ; x++) {
+            int r = devTable + x * DEV_REC;
+            int dom = buf.getInt(r + 24);
+            int order = buf.getInt(sorted + x * 4);
+            if (!stringFits(r, strSize) || !stringFits(r + 8, strSize) || !stringFits(r + 16, strSize)
+                    || dom < 0 || dom >= nDomains || order < 0 || order >= nDevices) {
+                return false;
+            }
+        }
+        return entriesFit(domHash, domHashSize, nDomains)
+               && entriesFit(devHash, devHashSize, nDevices)
+               && entriesFit(ipHash, ipHashSize, nDevices);
+    }
+
+    /** A hash table is empty, or a power of two more than its entries. */
+    private static boolean tableSize(int size, int entries) {
+        return entries == 0 ? size == 0 : size > entries && (size & (size - 1)) == 0;
+    }
+
+    private boolean stringFits(int ref, long strSize) {
+        int off = buf.getInt(ref);
+        int len = buf.getInt(ref + 4);
+        return off >= 0 && len >= 0 && (long) off + len <= strSize;
+    }
+
+    private boolean entriesFit(int table, int size, int records) {
+        for (int x = 0 ; x < size ; x++) {
+            int v = buf.getInt(table + x * 4);
+            if (v < 0 || v > records) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The snapshot file mapped. */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Compile a snapshot of the blocks read from a text file. Written to a temporary
+     * file and renamed into place, so a reader never maps a partial file.
+     * @param bin a new file, from nextGeneration()
+     * @param domLines the DOMAIN lines without their key, in file order
+     * @param devLines for each domain, the List of its DEVICE lines
+     */
+    static void write(File bin, long srcModified, long srcLength,
+                      List domLines, List devLines) throws IOException {
+        int nDom = domLines.size();
+        int nDev = 0;
+        for (int x = 0 ; x < nDom ; x++) {
+            nDev += ((List) devLines.get(x)).size();
+        }
+        ByteArrayOutputStream str = new ByteArrayOutputStream();
+        int[] dom = new int[nDom * DOM_REC / 4];
+        int[] dev = new int[nDev * DEV_REC / 4];
+        byte[][] domNames = new byte[nDom][];
+        byte[][] devNames = new byte[nDev][];
+        byte[][] devIps = new byte[nDev][];
+        final String[] sortNames = new String[nDev];
+        int d = 0;
+        for (int x = 0 ; x < nDom ; x++) {
+            String line = (String) domLines.get(x);
+            String name = new Domain(line).getName();
+            domNames[x] = name.getBytes("UTF-8");
+            int r = x * DOM_REC / 4;
+            putString(dom, r, str, line.getBytes("UTF-8"));
+            putString(dom, r + 2, str, domNames[x]);
+            List devs = (List) devLines.get(x);
+            dom[r + 4] = d;
+            dom[r + 5] = devs.size();
+            for (int y = 0 ; y < devs.size() ; y++, d++) {
+                String devLine = (String) devs.get(y);
+                String[] f = TextDataBase.fields(devLine);
+                sortNames[d] = TextDataBase.field(f, 0);
+                devNames[d] = sortNames[d].getBytes("UTF-8");
+                devIps[d] = TextDataBase.field(f, 1).getBytes("UTF-8");
+                int s = d * DEV_REC / 4;
+                putString(dev, s, str, devLine.getBytes("UTF-8"));
+                putString(dev, s + 2, str, devNames[d]);
+                putString(dev, s + 4, str, devIps[d]);
+                dev[s + 6] = x;
+            }
+        }
+        int[] domH = hashTable(domNames, true);
+        int[] devH = hashTable(devNames, true);
+        int[] ipH = hashTable(devIps, false);
+        Integer[] order = new Integer[nDev];
+        for (int x = 0 ; x < nDev ; x++) {
+            order[x] = Integer.valueOf(x);
+        }
+        Arrays.sort(order, new Comparator() {
+            public int compare(Object a, Object b) {
+                return sortNames[((Integer) a).intValue()].compareTo(sortNames[((Integer) b).intValue()]);
+            }
+        });
+
+        int domTable = HEADER;
+        int devTable = domTable + dom.length * 4;
+        int domHash = devTable + dev.length * 4;
+        int devHash = domHash + domH.length * 4;
+        int ipHash = devHash + devH.length * 4;
+        int sorted = ipHash + ipH.length * 4;
+        int strings = sorted + nDev * 4;
+
+        File tmp = new File(bin.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(srcModified);
+            out.writeLong(srcLength);
+            out.writeInt(nDom);
+            out.writeInt(nDev);
+            out.writeInt(domTable);
+            out.writeInt(devTable);
+            out.writeInt(domHash);
+            out.writeInt(domH.length);
+            out.writeInt(devHash);
+            out.writeInt(devH.length);
+            out.writeInt(ipHash);
+            out.writeInt(ipH.length);
+            out.writeInt(sorted);
+            out.writeInt(strings);
+            out.write(new byte[HEADER - 72]);
+            writeInts(out, dom);
+            writeInts(out, dev);
+            writeInts(out, domH);
+            writeInts(out, devH);
+            writeInts(out, ipH);
+            for (int x = 0 ; x < nDev ; x++) {
+                out.writeInt(order[x].intValue());
+            }
+            str.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(bin)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + bin);
+        }
+    }
+
+    int domainCount() {
+        return nDomains;
+    }
+
+    String domainLine(int i) {
+        return string(domTable + i * DOM_REC);
+    }
+
+    /** False if a later DOMAIN block of the same name replaced this one. */
+    boolean isCurrentDomain(int i) {
+        return domainIndex(string(domTable + i * DOM_REC + 8)) == i;
+    }
+
+    /** Index of the named domain, -1 if none. */
+    int domainIndex(String name) {
+        return lookup(domHash, domHashSize, domTable, DOM_REC, 8, name);
+    }
+
+    int firstDevice(int domain) {
+        return buf.getInt(domTable + domain * DOM_REC + 16);
+    }
+
+    int deviceCount(int domain) {
+        return buf.getInt(domTable + domain * DOM_REC + 20);
+    }
+
+    String deviceLine(int i) {
+        return string(devTable + i * DEV_REC);
+    }
+
+    String deviceName(int i) {
+        return string(devTable + i * DEV_REC + 8);
+    }
+
+    int deviceDomain(int i) {
+        return buf.getInt(devTable + i * DEV_REC + 24);
+    }
+
+    /** Index of the named device, -1 if none. */
+    int deviceIndex(String name) {
+        return lookup(devHash, devHashSize, devTable, DEV_REC, 8, name);
+    }
+
+    /** Indexes of the devices with the IP address. */
+    int[] devicesByIp(String ip) {
+        if (ipHashSize == 0) {
+            return new int[0];
+        }
+        byte[] key = bytes(ip);
+        int[] found = new int[ipMatches(key, null)];
+        ipMatches(key, found);
+        return found;
+    }
+
+    /** Count the devices with the ip, filling found with them if not null. */
+    private int ipMatches(byte[] key, int[] found) {
+        int n = 0;
+        int mask = ipHashSize - 1;
+        int slot = hash(key) & mask;
+        for (int probes = 0 ; probes < ipHashSize ; probes++, slot = (slot + 1) & mask) {
+            int v = buf.getInt(ipHash + slot * 4);
+            if (v == 0) {
+                break;
+            }
+            if (equals(devTable + (v - 1) * DEV_REC + 16, key)) {
+                if (found != null) {
+                    found[n] = v - 1;
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Indexes of the devices whose names start with prefix, in name order,
+     * only the last device of a repeated name.
+     */
+    int[] devicesWithPrefix(String prefix) {
+        int lo = 0;
+        int hi = nDevices;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (deviceName(sortedDevice(mid)).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = lo;
+        while (end < nDevices && deviceName(sortedDevice(end)).startsWith(prefix)) {
+            end++;
+        }
+        int[] found = new int[end - lo];
+        int n = 0;
+        for (int x = lo ; x < end ; x++) {
+            int d = sortedDevice(x);
+            if (deviceIndex(deviceName(d)) == d) {
+                found[n++] = d;
+            }
+        }
+        if (n < found.length) {
+            int[] all = found;
+            found = new int[n];
+            System.arraycopy(all, 0, found, 0, n);
+        }
+        return found;
+    }
+
+    private int sortedDevice(int x) {
+        return buf.getInt(sorted + x * 4);
+    }
+
+    /** Find name in a hash table of records whose name is at nameAt. */
+    private int lookup(int table, int size, int records, int recSize, int nameAt, String name) {
+        if (size == 0) {
+            return -1;
+        }
+        byte[] key = bytes(name);
+        int mask = size - 1;
+        int slot = hash(key) & mask;
+        for (int probes = 0 ; probes < size ; probes++, slot = (slot + 1) & mask) {
+            int v = buf.getInt(table + slot * 4);
+            if (v == 0) {
+                return -1;
+            }
+            if (equals(records + (v - 1) * recSize + nameAt, key)) {
+                return v - 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the string whose (offset, length) is at ref with key, in place. */
+    private boolean equals(int ref, byte[] key) {
+        int off = strings + buf.getInt(ref);
+        if (buf.getInt(ref + 4) != key.length) {
+            return false;
+        }
+        for (int x = 0 ; x < key.length ; x++) {
+            if (buf.get(off + x) != key[x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int ref) {
+        byte[] b = new byte[buf.getInt(ref + 4)];
+        ByteBuffer d = buf.duplicate();
+        d.position(strings + buf.getInt(ref));
+        d.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** FNV-1a */
+    private static int hash(byte[] b) {
+        int h = 0x811c9dc5;
+        for (int x = 0 ; x < b.length ; x++) {
+            h = (h ^ (b[x] & 0xff)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Open addressed table of index + 1, at most half full.
+     * @param unique keep only the last index of a repeated key
+     */
+    private static int[] hashTable(byte[][] keys, boolean unique) {
+        int size = 1;
+        while (size < keys.length * 2) {
+            size <<= 1;
+        }
+        int[] table = new int[keys.length == 0 ? 0 : size];
+        int mask = size - 1;
+        for (int x = 0 ; x < keys.length ; x++) {
+            int slot = hash(keys[x]) & mask;
+            while (table[slot] != 0 && !(unique && Arrays.equals(keys[table[slot] - 1], keys[x]))) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = x + 1;
+        }
+        return table;
+    }
+
+    private static void putString(int[] table, int at, ByteArrayOutputStream str, byte[] b) {
+        table[at] = str.size();
+        table[at + 1] = b.length;
+        str.write(b, 0, b.length);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        for (int x = 0 ; x < a.length ; x++) {
+            out.writeInt(a[x]);
+        }
+    }
+}
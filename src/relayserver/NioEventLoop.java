@@ -0,0 +1,105 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of the NIO relay engine. Channels are registered with a
+ * Handler which is called on this thread whenever its key is ready. Other
+ * threads hand work to the loop with execute().
+ */
+public class NioEventLoop implements Runnable {
+
+    /** Called on the loop thread when a registered key is ready. */
+    public interface Handler {
+        public void ready(SelectionKey key) throws IOException;
+        public void failed(Exception ex);
+    }
+
+    private final Selector selector;
+    private final Queue tasks = new ConcurrentLinkedQueue();
+    private final String name;
+    private volatile boolean closed;
+    private volatile Thread myThread;
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+    }
+
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /** Run r on the loop thread. */
+    public void execute(Runnable r) {
+        tasks.add(r);
+        selector.wakeup();
+    }
+
+    /** True if called on the loop thread. */
+    public boolean inLoop() {
+        return Thread.currentThread() == myThread;
+    }
+
+    /** Register a channel. Must be called on the loop thread. */
+    public SelectionKey register(SelectableChannel ch, int ops, Handler h) throws IOException {
+        ch.configureBlocking(false);
+        return ch.register(selector, ops, h);
+    }
+
+    public void run() {
+        myThread = Thread.currentThread();
+        myThread.setName(name);
+        while(!closed) {
+            try {
+                selector.select(1000);
+            } catch(IOException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+            runTasks();
+            Iterator i = selector.selectedKeys().iterator();
+            while(i.hasNext()) {
+                SelectionKey key = (SelectionKey) i.next();
+                i.remove();
+                Handler h = (Handler) key.attachment();
+                try {
+                    if(key.isValid()) {
+                        h.ready(key);
+                    }
+                } catch(Exception ex) {
+                    h.failed(ex);
+                }
+            }
+        }
+        // fail everything still registered so sessions release resources
+        Object[] keys = selector.keys().toArray();
+        for(int x = 0 ; x < keys.length ; x++) {
+            SelectionKey key = (SelectionKey) keys[x];
+            ((Handler) key.attachment()).failed(new IOException("Relay engine closed"));
+        }
+        try {
+            selector.close();
+        } catch(IOException ex) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable r;
+        while((r = (Runnable) tasks.poll()) != null) {
+            try {
+                r.run();
+            } catch(Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,196 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+import common.Logger;
+import common.Constants;
+
+/**
+ * Alternative to the thread per connection RelayWorker. Connections are
+ * accepted on the RelayServer thread and shared out between a small number
+ * of NioEventLoops, each of which runs any number of NioRelaySessions.
+ * Selected with RELAYENGINE=NIO in the ini file; RELAYNIOTHREADS sets the
+ * number of event loops (defaults to the number of processors).
+ * The relay request is decoded as it arrives, so a client that trickles its
+ * request costs nothing but a buffer until RELAYREQUESTTIMEOUT expires.
+ * The CPU heavy parts of TLS handshakes (the SSLEngine's delegated tasks) run
+ * on a separate pool, RELAYTLSTHREADS in size, so they don't stall the loops.
+ */
+public class NioRelayEngine {
+
+    private final Logger logger;
+    private final PatchInterfaceDB patchdb;
+    private final String relayCompatibilityVersion;
+    private final Constants constants;
+    private final SSLContext sslContext;
+    private final AdmissionController admission;
+    private final TlsSessions tlsSessions;
+    private final OnwardConnector connector;
+    private final ExecutorService handshakeExecutor;
+    private final NioEventLoop[] loops;
+    private final ExecutorService blockingExecutor = Executors.newCachedThreadPool(RelayThreads.factory("RelayNioLocal"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private ServerSocketChannel ssc;
+    private volatile boolean closed;
+    private int nextLoop = 0;
+    private final long requestTimeout;
+
+    public NioRelayEngine(int threads, SSLContext sslContext, Logger logger, PatchInterfaceDB patchdb,
+                          String relayCompatibilityVersion, Constants constants,
+                          AdmissionController admission, TlsSessions tlsSessions,
+                          OnwardConnector connector) throws IOException {
+        this.connector = connector;
+        this.admission = admission;
+        this.tlsSessions = tlsSessions;
+        tlsSessions.configure(sslContext.getServerSessionContext());
+        this.sslContext = sslContext;
+        this.logger = logger;
+        this.patchdb = patchdb;
+        this.relayCompatibilityVersion = relayCompatibilityVersion;
+        this.constants = constants;
+        requestTimeout = IniProperties.getLong(constants.getProperties(), "RELAYREQUESTTIMEOUT", 10000);
+        handshakeExecutor = Executors.newFixedThreadPool(
+                IniProperties.getInt(constants.getProperties(), "RELAYTLSTHREADS", threads),
+                RelayThreads.factory("RelayTls"));
+        loops = new NioEventLoop[threads];
+        for(int x = 0 ; x < threads ; x++) {
+            loops[x] = new NioEventLoop("RelayNioLoop-" + x);
+        }
+    }
+
+    /**
+     * Build the SSLContext for the engine. SSLEngine can't be had from the
+     * SecureSocketFactory, so the key store is named by RELAYKEYSTORE and
+     * RELAYKEYSTOREPASSWORD, falling back to the JVM default context (the
+     * javax.net.ssl.* system properties).
+     */
+    public static SSLContext createSSLContext(Properties props) throws Exception {
+        String ksName = props.getProperty("RELAYKEYSTORE");
+        if(ksName == null) {
+            return SSLContext.getDefault();
+        }
+        char[] pwd = props.getProperty("RELAYKEYSTOREPASSWORD", "").toCharArray();
+        KeyStore ks = KeyStore.getInstance(props.getProperty("RELAYKEYSTORETYPE", KeyStore.getDefaultType()));
+        FileInputStream fis = new FileInputStream(ksName.trim());
+        try {
+            ks.load(fis, pwd);
+        } finally {
+            fis.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, pwd);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+
+    /**
+     * Listen for client connections until closed. This is a long duration
+     * call made on the RelayServer thread.
+     */
+    public void run(InetAddress bindAddress, int port, int backlog) throws IOException {
+        ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(bindAddress, port), backlog);
+        for(int x = 0 ; x < loops.length ; x++) {
+            loops[x].start();
+        }
+        logger.log("NIO relay engine listening with " + loops.length + " event loops.");
+        try {
+            while(!closed) {
+                SocketChannel ch = ssc.accept();
+                final NioEventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                // sessions over the limit are still accepted, but only to be told so
+                final NioRelaySession session = new NioRelaySession(this, loop, ch, admission.tryAdmit());
+                loop.execute(new Runnable() {
+                    public void run() {
+                        session.start();
+                    }
+                });
+            }
+        } catch(IOException ex) {
+            if(!closed) {
+                throw ex;
+            }
+        } finally {
+            close();
+        }
+    }
+
+    SSLEngine createSSLEngine() {
+        SSLEngine e = sslContext.createSSLEngine();
+        e.setUseClientMode(false);
+        return e;
+    }
+
+    OnwardConnector getConnector() {
+        return connector;
+    }
+
+    TlsSessions getTlsSessions() {
+        return tlsSessions;
+    }
+
+    /** For SSLEngine delegated tasks. */
+    ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    AdmissionController getAdmission() {
+        return admission;
+    }
+
+    Logger getLogger() {
+        return logger;
+    }
+
+    PatchInterfaceDB getPatchdb() {
+        return patchdb;
+    }
+
+    /** The version in use, which a reload of the ini file may change. */
+    String getRelayCompatibilityVersion() {
+        return RelayConfig.current().getCompatibilityVersion(relayCompatibilityVersion);
+    }
+
+    Constants getConstants() {
+        return constants;
+    }
+
+    /** For work that has to block, such as starting a process. */
+    ExecutorService getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if(ssc != null) {
+                ssc.close();
+            }
+        } catch(IOException ex) {
+        }
+        for(int x = 0 ; x < loops.length ; x++) {
+            loops[x].close();
+        }
+        timer.shutdownNow();
+        handshakeExecutor.shutdownNow();
+        blockingExecutor.shutdown();
+    }
+}
@@ -0,0 +1,804 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import common.RelayRequest;
+import common.RelayReply;
+import common.RelayHelper;
+
+/**
+ * One client connection handled by the NIO relay engine. This is the
+ * non-blocking equivalent of RelayWorker: it runs the TLS handshake with an
+ * SSLEngine, decodes the relay request, places the onward call and then
+ * relays data in both directions, all on the event loop thread it was
+ * assigned to.
+ * Local requests (PING, TRACEROUTE and CONFIG) are stream based, so their
+ * output is still copied by a RelayHelper on a pooled thread and fed back
+ * into the session, and client input for them is written by a pooled
+ * thread too, so a process that doesn't read its input can't hold up the
+ * loop. They are short lived so this doesn't matter.
+ * All buffers that meet a socket are direct, so relayed data isn't copied
+ * through the heap on its way to and from the kernel.
+ */
+public class NioRelaySession {
+
+    // session states
+    private static final int REQUEST = 0;    // waiting for the relay request
+    private static final int CONNECTING = 1; // placing the onward call
+    private static final int RELAYING = 2;   // forwarding data
+    private static final int CLOSING = 3;    // sending a failure reply
+    private static final int CLOSED = 4;
+
+    private static final int HOST_BUFFER_SIZE = 16384;
+    private static final int MAX_LOCAL_PENDING = 262144; // local output queued for the client
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final NioRelayEngine engine;
+    private final NioEventLoop loop;
+    private final SocketChannel client;
+    private final SSLEngine ssl;
+    private SelectionKey clientKey;
+    private ByteBuffer netIn;   // encrypted bytes from the client
+    private ByteBuffer netOut;  // encrypted bytes for the client
+    private ByteBuffer appIn;   // decrypted bytes from the client
+    private final RelayRequestDecoder decoder = new RelayRequestDecoder();
+    private int state = REQUEST;
+    private boolean closeAfterFlush = false;
+    private String peer;
+    private long handshakeStart;
+    private boolean handshakeDone = false;
+    private boolean tasksRunning = false; // delegated TLS tasks are off on the handshake pool
+    private final boolean admitted;   // counted in with the AdmissionController
+    private String admittedSource;    // relay source IP counted in
+
+    // onward call
+    private SocketChannel host;
+    private SelectionKey hostKey;
+    private ByteBuffer hostBuf;
+    private SessionStats stats;
+    private RelayRequest relayed;  // the request being relayed onward
+    private long connectStart;
+
+    // local request
+    private LocalRequest local;
+    private final Queue localOut = new ConcurrentLinkedQueue();
+    private LocalOutputStream localStream;
+    private final Queue localIn = new ConcurrentLinkedQueue();          // of byte[], client input
+    private final AtomicInteger localInPending = new AtomicInteger();
+    private final AtomicBoolean localInWriting = new AtomicBoolean();
+    private boolean localInPaused = false; // client reads stopped until the input drains
+
+    public NioRelaySession(NioRelayEngine engine, NioEventLoop loop, SocketChannel client, boolean admitted) {
+        this.engine = engine;
+        this.admitted = admitted;
+        this.loop = loop;
+        this.client = client;
+        this.ssl = engine.createSSLEngine();
+    }
+
+    /** Start handling the connection. Must be called on the loop thread. */
+    public void start() {
+        try {
+            peer = String.valueOf(client.socket().getRemoteSocketAddress());
+            SSLSession s = ssl.getSession();
+            netIn = ByteBuffer.allocateDirect(s.getPacketBufferSize());
+            netOut = ByteBuffer.allocateDirect(s.getPacketBufferSize());
+            appIn = ByteBuffer.allocateDirect(s.getApplicationBufferSize());
+            clientKey = loop.register(client, SelectionKey.OP_READ, new ClientHandler());
+            handshakeStart = System.currentTimeMillis();
+            ssl.beginHandshake();
+            engine.getTimer().schedule(new Runnable() {
+                public void run() {
+                    loop.execute(new Runnable() {
+                        public void run() {
+                            if(state == REQUEST) {
+                                fail(new Exception("Timed out waiting for relay request"));
+                            }
+                        }
+                    });
+                }
+            }, engine.getRequestTimeout(), TimeUnit.MILLISECONDS);
+        } catch(Exception ex) {
+            engine.getLogger().log("Exception occured " + ex);
+            close();
+        }
+    }
+
+    /* ---------------- client side ---------------- */
+
+    private class ClientHandler implements NioEventLoop.Handler {
+        public void ready(SelectionKey key) throws IOException {
+            if(key.isWritable()) {
+                clientWritable();
+            }
+            if(key.isValid() && key.isReadable()) {
+                int n = client.read(netIn);
+                if(n == -1) {
+                    close();
+                    return;
+                }
+                processNetIn();
+            }
+        }
+        public void failed(Exception ex) {
+            NioRelaySession.this.failed(ex);
+        }
+    }
+
+    /** Unwrap buffered TLS records and act on the decrypted data. */
+    private void processNetIn() throws IOException {
+        boolean progress = true;
+        while(progress && state != CLOSED) {
+            progress = false;
+            handshake();
+            HandshakeStatus hs = ssl.getHandshakeStatus();
+            if(hs == HandshakeStatus.NEED_WRAP || hs == HandshakeStatus.NEED_TASK) {
+                return; // waiting for the client to take our handshake data, or for tasks
+            }
+            netIn.flip();
+            SSLEngineResult res;
+            try {
+                res = ssl.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            if(res.getStatus() == Status.CLOSED) {
+                finish();
+                return;
+            }
+            checkHandshakeDone(res);
+            if(res.bytesConsumed() > 0 || res.bytesProduced() > 0) {
+                progress = true;
+            }
+            if(appIn.position() > 0) {
+                int before = appIn.position();
+                consumeAppIn();
+                if(res.getStatus() == Status.BUFFER_OVERFLOW && appIn.position() < before) {
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    /** Run the TLS handshake as far as it can go without more input. */
+    private void handshake() throws IOException {
+        while(true) {
+            HandshakeStatus hs = ssl.getHandshakeStatus();
+            if(hs == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return;
+            } else if(hs == HandshakeStatus.NEED_WRAP) {
+                SSLEngineResult res = ssl.wrap(EMPTY, netOut);
+                checkHandshakeDone(res);
+                flushClient();
+                if(res.getStatus() == Status.BUFFER_OVERFLOW && clientBlocked()) {
+                    return;
+                }
+                if(res.getStatus() == Status.CLOSED) {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run the engine's delegated tasks on the handshake pool and carry on
+     * with the handshake on the loop once they are done.
+     */
+    private void runDelegatedTasks() {
+        if(tasksRunning) {
+            return;
+        }
+        tasksRunning = true;
+        engine.getHandshakeExecutor().execute(new Runnable() {
+            public void run() {
+                Runnable task;
+                while((task = ssl.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(new Runnable() {
+                    public void run() {
+                        tasksRunning = false;
+                        if(state == CLOSED) {
+                            return;
+                        }
+                        try {
+                            processNetIn();
+                        } catch(Exception ex) {
+                            failed(ex);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void checkHandshakeDone(SSLEngineResult res) {
+        if(!handshakeDone && res.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            handshakeDone = true;
+            engine.getTlsSessions().handshakeDone(ssl.getSession(), handshakeStart);
+        }
+    }
+
+    /** Hand decrypted client data on according to the session state. */
+    private void consumeAppIn() throws IOException {
+        if(state == REQUEST) {
+            appIn.flip();
+            decoder.append(appIn);
+            appIn.clear();
+            RelayRequest rrq = decoder.decode();
+            if(rrq != null) {
+                appIn.put(decoder.remaining()); // anything sent after the request
+                handleRequest(rrq);
+            }
+        } else if(state == CONNECTING) {
+            setInterest(clientKey, SelectionKey.OP_READ, false);
+        } else if(state == RELAYING && host != null) {
+            appIn.flip();
+            stats.addToHost(host.write(appIn));
+            appIn.compact();
+            if(appIn.position() > 0) {
+                // host is backed up, stop reading from the client until it drains
+                setInterest(hostKey, SelectionKey.OP_WRITE, true);
+                setInterest(clientKey, SelectionKey.OP_READ, false);
+            }
+        } else if(state == RELAYING && local != null) {
+            appIn.flip();
+            if(appIn.hasRemaining()) {
+                byte[] b = new byte[appIn.remaining()];
+                appIn.get(b);
+                queueLocalIn(b);
+            }
+            appIn.clear();
+        } else if(state == CLOSING) {
+            appIn.clear();
+        }
+    }
+
+    /**
+     * Encrypt src into netOut and send as much as the client will take.
+     * Stops if the engine can't wrap anything yet (mid handshake).
+     */
+    private void wrapToClient(ByteBuffer src) throws IOException {
+        while(src.hasRemaining() && state != CLOSED) {
+            SSLEngineResult res = ssl.wrap(src, netOut);
+            if(res.getStatus() == Status.BUFFER_OVERFLOW) {
+                flushClient();
+                if(clientBlocked()) {
+                    return;
+                }
+            } else if(res.getStatus() == Status.CLOSED) {
+                return;
+            } else if(res.bytesConsumed() == 0 && res.bytesProduced() == 0) {
+                break;
+            }
+        }
+        flushClient();
+    }
+
+    private void flushClient() throws IOException {
+        netOut.flip();
+        try {
+            client.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        setInterest(clientKey, SelectionKey.OP_WRITE, clientBlocked());
+        if(!clientBlocked() && closeAfterFlush) {
+            close();
+        }
+    }
+
+    private boolean clientBlocked() {
+        return netOut.position() > 0;
+    }
+
+    /** The client has drained, so carry on with whatever was held up. */
+    private void clientWritable() throws IOException {
+        flushClient();
+        if(clientBlocked() || state == CLOSED) {
+            return;
+        }
+        if(host != null && state == RELAYING) {
+            flushHostBuf();
+        }
+        if(local != null) {
+            drainLocalOut();
+        }
+        processNetIn();
+    }
+
+    /* ---------------- request handling ---------------- */
+
+    private void handleRequest(final RelayRequest rrq) throws IOException {
+        engine.getLogger().log(rrq.toString());
+        String compat = engine.getRelayCompatibilityVersion();
+        //check version compatability. 0 means dont check
+        if(!compat.equals("0") && !rrq.isVersionCompatable(compat)) {
+            fail(new Exception("Client version incompatible with relay server"));
+            return;
+        }
+        AdmissionController admission = engine.getAdmission();
+        if(!admitted) {
+            fail(new Exception(AdmissionController.BUSY));
+            return;
+        }
+        if(!admission.acquireSource(rrq.relaySrcIp)) {
+            fail(new Exception(admission.sourceBusyMessage(rrq.relaySrcIp)));
+            return;
+        }
+        admittedSource = rrq.relaySrcIp;
+        state = CONNECTING;
+        setInterest(clientKey, SelectionKey.OP_READ, false);
+        if(LocalRequest.isLocal(rrq)) {
+            // starting a process or collection can block, so do it off the loop
+            final String clientHost = client.socket().getInetAddress().getHostAddress();
+            engine.getBlockingExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        final LocalRequest lr = LocalRequest.open(rrq, engine.getConstants(), clientHost);
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                localOpened(lr);
+                            }
+                        });
+                    } catch(final Exception ex) {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                fail(ex);
+                            }
+                        });
+                    }
+                }
+            });
+            return;
+        }
+        // It must be a relay request, IP cross connect patches and any other application
+        if(rrq.appName.startsWith("TCP-")) {
+            // only accept if the requested Relay Source Ip address is specified in the Patch interface file.
+            if(engine.getPatchdb().isAuthorised(rrq.relaySrcIp)) {
+                engine.getLogger().log(rrq.toString().replaceFirst(rrq.KEY, "RequestAccepted:"));
+            } else {
+                engine.getLogger().log(rrq.toString().replaceFirst(rrq.KEY, "RequestRejected:"));
+                fail(new Exception("TCP patching request " + rrq.appName + " is not supported. Please contact your key user"));
+                return;
+            }
+        }
+        // place the ongoing call
+        engine.getLogger().log("About to place ongoing call to destination " + rrq.relayDstIp + " on port " + rrq.relayDstPort);
+        OnwardConnector connector = engine.getConnector();
+        relayed = rrq;
+        connectStart = System.currentTimeMillis();
+        try {
+            connector.checkReachable(rrq.relaySrcIp, rrq.relayDstIp, rrq.relayDstPort);
+            host = SocketChannel.open();
+            host.configureBlocking(false);
+            host.socket().bind(new InetSocketAddress(connector.localAddress(rrq.relaySrcIp), 0));
+            boolean done = host.connect(new InetSocketAddress(rrq.relayDstIp, rrq.relayDstPort));
+            hostKey = loop.register(host, done ? 0 : SelectionKey.OP_CONNECT, new HostHandler());
+            if(done) {
+                hostConnected();
+                return;
+            }
+        } catch(IOException ex) {
+            connectFailed(ex);
+            return;
+        }
+        engine.getTimer().schedule(new Runnable() {
+            public void run() {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        if(state == CONNECTING) {
+                            connectFailed(new SocketTimeoutException("connect timed out"));
+                        }
+                    }
+                });
+            }
+        }, connector.getConnectTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Send the reply to the client. */
+    private void sendReply(boolean ok, String msg) throws IOException {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        new RelayReply(ok, msg).write(bo);
+        wrapToClient(ByteBuffer.wrap(bo.toByteArray()));
+    }
+
+    /** Report an error to the client, if we still can, then close. */
+    private void fail(Exception ex) {
+        engine.getLogger().log("Exception occured " + ex);
+        if(state == CLOSED || state == CLOSING) {
+            return;
+        }
+        if(state == RELAYING || !handshakeDone) {
+            // no TLS to carry a reply yet
+            close();
+            return;
+        }
+        try {
+            String s = ex.getMessage();
+            if(s == null || s.length() == 0) {
+                s = ex.toString();
+            }
+            state = CLOSING;
+            setInterest(clientKey, SelectionKey.OP_READ, false);
+            closeAfterFlush = true;
+            sendReply(false, s);
+        } catch(Exception ex2) {
+            close();
+        }
+    }
+
+    /** Handler failure: the session can't carry on. */
+    private void failed(Exception ex) {
+        if(state != CLOSED) {
+            engine.getLogger().log("Relay session " + peer + " failed: " + ex);
+        }
+        close();
+    }
+
+    /* ---------------- host side ---------------- */
+
+    private class HostHandler implements NioEventLoop.Handler {
+        public void ready(SelectionKey key) throws IOException {
+            if(key.isConnectable()) {
+                try {
+                    host.finishConnect();
+                } catch(IOException ex) {
+                    connectFailed(ex);
+                    return;
+                }
+                hostConnected();
+                return;
+            }
+            if(key.isWritable()) {
+                appIn.flip();
+                stats.addToHost(host.write(appIn));
+                appIn.compact();
+                if(appIn.position() == 0) {
+                    setInterest(hostKey, SelectionKey.OP_WRITE, false);
+                    setInterest(clientKey, SelectionKey.OP_READ, true);
+                    processNetIn();
+                }
+            }
+            if(key.isValid() && key.isReadable()) {
+                int n = host.read(hostBuf);
+                if(n == -1) {
+                    finish();
+                    return;
+                }
+                stats.addToClient(n);
+                flushHostBuf();
+            }
+        }
+        public void failed(Exception ex) {
+            NioRelaySession.this.failed(ex);
+        }
+    }
+
+    private void connectFailed(IOException ex) {
+        if(!(ex instanceof OnwardConnector.RecentlyFailedException)) {
+            engine.getConnector().failed(relayed.relaySrcIp, relayed.relayDstIp, relayed.relayDstPort, ex);
+        }
+        fail(ex);
+    }
+
+    private void hostConnected() throws IOException {
+        engine.getConnector().connected(relayed.relaySrcIp, relayed.relayDstIp, relayed.relayDstPort, connectStart);
+        engine.getLogger().log("hostSocket = " + host.socket());
+        hostBuf = ByteBuffer.allocateDirect(HOST_BUFFER_SIZE);
+        stats = new SessionStats();
+        state = RELAYING;
+        sendReply(true, "Go ahead, caller.");
+        hostKey.interestOps(SelectionKey.OP_READ);
+        setInterest(clientKey, SelectionKey.OP_READ, true);
+        consumeAppIn();
+        processNetIn();
+    }
+
+    /** Send what the host gave us to the client, pausing the host if the client is slow. */
+    private void flushHostBuf() throws IOException {
+        hostBuf.flip();
+        try {
+            wrapToClient(hostBuf);
+        } finally {
+            hostBuf.compact();
+        }
+        setInterest(hostKey, SelectionKey.OP_READ, !clientBlocked());
+    }
+
+    /* ---------------- local requests ---------------- */
+
+    private void localOpened(LocalRequest lr) {
+        if(state == CLOSED) {
+            lr.close();
+            return;
+        }
+        local = lr;
+        localStream = new LocalOutputStream();
+        try {
+            state = RELAYING;
+            sendReply(true, "Go ahead, caller.");
+            setInterest(clientKey, SelectionKey.OP_READ, true);
+            consumeAppIn();
+            processNetIn();
+        } catch(Exception ex) {
+            failed(ex);
+            return;
+        }
+        final RelayHelper rh = lr.hostToClient(localStream);
+        engine.getBlockingExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    rh.run();
+                } finally {
+                    localStream.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue client input for the local request, to be written by a pooled
+     * thread. Client reads stop while too much is waiting. Called on the loop.
+     */
+    private void queueLocalIn(byte[] b) {
+        localIn.add(b);
+        if(localInPending.addAndGet(b.length) > MAX_LOCAL_PENDING) {
+            localInPaused = true;
+            setInterest(clientKey, SelectionKey.OP_READ, false);
+        }
+        if(localInWriting.compareAndSet(false, true)) {
+            engine.getBlockingExecutor().execute(localInTask);
+        }
+    }
+
+    /** Writes queued client input to the local request until none is left. */
+    private final Runnable localInTask = new Runnable() {
+        public void run() {
+            OutputStream out = local.getHostOut();
+            do {
+                byte[] b;
+                try {
+                    while((b = (byte[]) localIn.poll()) != null) {
+                        localInPending.addAndGet(-b.length);
+                        out.write(b);
+                    }
+                    out.flush();
+                } catch(IOException ex) {
+                    // the process has gone: its output ends the session, drop the input
+                    while((b = (byte[]) localIn.poll()) != null) {
+                        localInPending.addAndGet(-b.length);
+                    }
+                }
+                localInWriting.set(false);
+            } while(!localIn.isEmpty() && localInWriting.compareAndSet(false, true));
+            loop.execute(resumeLocalIn);
+        }
+    };
+
+    private final Runnable resumeLocalIn = new Runnable() {
+        public void run() {
+            if(!localInPaused || state != RELAYING || localInPending.get() > MAX_LOCAL_PENDING) {
+                return;
+            }
+            localInPaused = false;
+            setInterest(clientKey, SelectionKey.OP_READ, true);
+            try {
+                processNetIn();
+            } catch(Exception ex) {
+                failed(ex);
+            }
+        }
+    };
+
+    /** Send queued local output to the client. Called on the loop. */
+    private void drainLocalOut() throws IOException {
+        ByteBuffer b;
+        while(!clientBlocked() && (b = (ByteBuffer) localOut.peek()) != null) {
+            if(b.hasRemaining()) {
+                wrapToClient(b);
+            }
+            if(b.hasRemaining()) {
+                return;
+            }
+            localOut.poll();
+            localStream.release(b.capacity());
+        }
+        if(localOut.isEmpty() && localStream.isEnded()) {
+            finish();
+        }
+    }
+
+    /**
+     * Output stream given to the RelayHelper of a local request. Writes are
+     * queued for the loop, and block once too much is waiting for the client.
+     */
+    private class LocalOutputStream extends OutputStream {
+        // a lock rather than a monitor, the writer may be a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drained = lock.newCondition();
+        private int pending = 0;
+        private boolean ended = false;
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                while(pending > MAX_LOCAL_PENDING && !ended) {
+                    try {
+                        drained.await();
+                    } catch(InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if(ended) {
+                    throw new IOException("Relay session closed");
+                }
+                pending += len;
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer copy = ByteBuffer.allocate(len);
+            copy.put(b, off, len);
+            copy.flip();
+            localOut.add(copy);
+            loop.execute(drainTask);
+        }
+
+        void release(int n) {
+            lock.lock();
+            try {
+                pending -= n;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEnded() {
+            lock.lock();
+            try {
+                return ended;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void close() {
+            lock.lock();
+            try {
+                if(ended) {
+                    return;
+                }
+                ended = true;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            loop.execute(drainTask);
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            if(state == CLOSED) {
+                return;
+            }
+            try {
+                drainLocalOut();
+            } catch(Exception ex) {
+                failed(ex);
+            }
+        }
+    };
+
+    /* ---------------- shutdown ---------------- */
+
+    /** One side has finished: send what is left to the client then close. */
+    private void finish() throws IOException {
+        closeAfterFlush = true;
+        setInterest(clientKey, SelectionKey.OP_READ, false);
+        if(host != null) {
+            setInterest(hostKey, SelectionKey.OP_READ, false);
+        }
+        flushClient();
+    }
+
+    private static void setInterest(SelectionKey key, int op, boolean on) {
+        if(key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(on ? ops | op : ops & ~op);
+    }
+
+    private static void closeChannel(Channel ch) {
+        if(ch == null) {
+            return;
+        }
+        try {
+            ch.close();
+        } catch(IOException ex) {
+        }
+    }
+
+    /**
+     * Tell the client the TLS session is ending, as far as it will take it
+     * without blocking.
+     */
+    private void sendCloseNotify() {
+        if(netOut == null) {
+            return;
+        }
+        try {
+            ssl.closeOutbound();
+            while(!ssl.isOutboundDone()) {
+                SSLEngineResult res = ssl.wrap(EMPTY, netOut);
+                if(res.getStatus() != Status.OK || res.bytesProduced() == 0) {
+                    break;
+                }
+            }
+            netOut.flip();
+            client.write(netOut);
+        } catch(Exception ex) {
+            // closing anyway
+        }
+    }
+
+    /** Release everything. Must be called on the loop thread. */
+    public void close() {
+        if(state == CLOSED) {
+            return;
+        }
+        state = CLOSED;
+        if(stats != null) {
+            engine.getLogger().log("Relay session ended, " + stats);
+        }
+        if(admittedSource != null) {
+            engine.getAdmission().releaseSource(admittedSource);
+        }
+        if(admitted) {
+            engine.getAdmission().sessionEnded();
+        }
+        if(clientKey != null) {
+            clientKey.cancel();
+        }
+        if(hostKey != null) {
+            hostKey.cancel();
+        }
+        sendCloseNotify();
+        closeChannel(client);
+        closeChannel(host);
+        if(localStream != null) {
+            localStream.close();
+        }
+        if(local != null) {
+            local.close();
+        }
+    }
+
+    public String toString() {
+        return "NioRelaySession " + peer;
+    }
+}
@@ -0,0 +1,138 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Places onward calls for relay requests. Connects time out after
+ * RELAYCONNECTTIMEOUT ms (default 10000) instead of the OS default, and a
+ * destination that has just failed is remembered for RELAYUNREACHABLETTL ms
+ * (default 15000, 0 turns it off) so repeat requests fail straight away.
+ * Destinations are keyed with the relay source IP, as different customer
+ * domains reached through different interfaces can reuse addresses.
+ * Resolved local bind addresses are cached as well.
+ */
+public class OnwardConnector {
+
+    private static final int MAX_CACHED = 10000;
+
+    private final int connectTimeout;
+    private final long unreachableTtl;
+    private final Map localAddrs = new ConcurrentHashMap();  // relay source ip -> InetAddress
+    private final Map unreachable = new ConcurrentHashMap(); // src>dst:port -> Unreachable
+
+    /** Thrown instead of retrying a destination that failed recently. */
+    public static class RecentlyFailedException extends ConnectException {
+        public RecentlyFailedException(String msg) {
+            super(msg);
+        }
+    }
+
+    /** A destination that failed recently. */
+    private static class Unreachable {
+        final long until;
+        final String reason;
+
+        Unreachable(long until, String reason) {
+            this.until = until;
+            this.reason = reason;
+        }
+    }
+
+    public OnwardConnector(Properties props) {
+        connectTimeout = IniProperties.getInt(props, "RELAYCONNECTTIMEOUT", 10000);
+        unreachableTtl = IniProperties.getLong(props, "RELAYUNREACHABLETTL", 15000);
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** The address to bind the onward call to, resolved once per source IP. */
+    public InetAddress localAddress(String srcIp) throws UnknownHostException {
+        InetAddress a = (InetAddress) localAddrs.get(srcIp);
+        if (a == null) {
+            a = InetAddress.getByName(srcIp);
+            if (localAddrs.size() >= MAX_CACHED) {
+                localAddrs.clear();
+            }
+            localAddrs.put(srcIp, a);
+        }
+        return a;
+    }
+
+    /** Throw straight away if the destination failed within the TTL. */
+    public void checkReachable(String srcIp, String dstIp, int dstPort) throws RecentlyFailedException {
+        if (unreachableTtl <= 0) {
+            return;
+        }
+        String key = key(srcIp, dstIp, dstPort);
+        Unreachable u = (Unreachable) unreachable.get(key);
+        if (u == null) {
+            return;
+        }
+        if (u.until < System.currentTimeMillis()) {
+            unreachable.remove(key);
+            return;
+        }
+        RelayMetrics.counter("connect.unreachable.hits").incrementAndGet();
+        throw new RecentlyFailedException(u.reason + " (recently failed, not retried)");
+    }
+
+    /** Remember a failed onward call. */
+    public void failed(String srcIp, String dstIp, int dstPort, IOException ex) {
+        RelayMetrics.counter("connect.failed").incrementAndGet();
+        if (unreachableTtl <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (unreachable.size() >= MAX_CACHED) {
+            prune(now);
+        }
+        String reason = ex.getMessage();
+        if (reason == null || reason.length() == 0) {
+            reason = ex.toString();
+        }
+        unreachable.put(key(srcIp, dstIp, dstPort), new Unreachable(now + unreachableTtl, reason));
+    }
+
+    /** Record a successful onward call. */
+    public void connected(String srcIp, String dstIp, int dstPort, long startMillis) {
+        RelayMetrics.histogram("connect.ms").record(System.currentTimeMillis() - startMillis);
+        unreachable.remove(key(srcIp, dstIp, dstPort));
+    }
+
+    /** Place a blocking onward call, for the thread mode RelayWorker. */
+    public Socket connect(String srcIp, String dstIp, int dstPort) throws IOException {
+        checkReachable(srcIp, dstIp, dstPort);
+        long start = System.currentTimeMillis();
+        Socket s = new Socket();
+        try {
+            s.bind(new InetSocketAddress(localAddress(srcIp), 0));
+            s.connect(new InetSocketAddress(dstIp, dstPort), connectTimeout);
+        } catch (IOException ex) {
+            common.IoUtil.close(s);
+            failed(srcIp, dstIp, dstPort, ex);
+            throw ex;
+        }
+        connected(srcIp, dstIp, dstPort, start);
+        return s;
+    }
+
+    private void prune(long now) {
+        for (Iterator i = unreachable.values().iterator(); i.hasNext();) {
+            if (((Unreachable) i.next()).until < now) {
+                i.remove();
+            }
+        }
+        if (unreachable.size() >= MAX_CACHED) {
+            unreachable.clear();
+        }
+    }
+
+    private static String key(String srcIp, String dstIp, int dstPort) {
+        return srcIp + ">" + dstIp + ":" + dstPort;
+    }
+}
@@ -11,59 +11,46 @@ import common.IoUtil;
  * reading of PatchInterfaceDB text file.  This text file lists the 
  * source Relay IP addresses of Relay Servers that supports patching 
  * on this interface address out of the server to the customer domain.
+ * Entries may be single addresses or CIDR ranges. Each load is published
+ * as an immutable PatchSourceSet, so lookups never wait for a reload.
  * 
  */
 
-public class PatchInterfaceDB implements Runnable { 
+public class PatchInterfaceDB { 
     
     private String fileName;
     private boolean fnfReported = false;  //flag indicates if FileNotFound has been reported already.
-    private volatile boolean closed; // flag to kill the thread
-    private long lastFileLoad = -1;
-    public Set patchSrcList = new LinkedHashSet(); // Set of the patch sources addresses provided in the file
-    private volatile Thread myThread;
+    private volatile PatchSourceSet patchSources = PatchSourceSet.EMPTY; // patch source addresses provided in the file
+    private final ReloadableFile file;
 
 
     /**
-     * Create a PatchInterfaceDB and start the file refresh thread.
-     * Use close() to kill the thread.
+     * Create a PatchInterfaceDB, load the file and watch it for changes,
+     * with a refresh thread only if it can't be watched.
+     * Use close() to stop watching.
      */
     public PatchInterfaceDB(String filename) {
         fileName = filename;
-        new Thread(this).start();
+        file = new ReloadableFile(fileName, "PatchInterfaceDB file watcher", new ReloadableFile.Loader() {
+            public boolean load() {
+                return readFile();
+            }
+        });
+        file.start();
     }
     
     /** Iterate the Patch sources IP address list lines. */
-    public synchronized Iterator patches() {
-        return patchSrcList.iterator();
+    public Iterator patches() {
+        return patchSources.getEntries().iterator();
     }
-    
-    /**
-     * Infinite loop checking the file date once a minute. 
-     * re-reads the file if changed.
-     */
-    public void run() {
-        if(myThread != null) {
-            throw new RuntimeException("Thread already running!");
-        }
-        myThread = Thread.currentThread();
-        myThread.setName("PatchInterfaceDB file watcher");
-        while(!closed) {
-            readFile();
-            try {
-                Thread.sleep(60000);
-            } catch(InterruptedException ie) {
-            }
-        }
+
+    /** True if the relay source IP address may be used for patching. */
+    public boolean isAuthorised(String srcIp) {
+        return patchSources.contains(srcIp);
     }
     
-    /** Read the database file only if it has been modified. */
-    private void readFile() {
-        File f = new File(fileName);
-        long lastMod = f.lastModified();
-        if(lastFileLoad == lastMod) {
-            return;
-        }
+    /** Read the database file. */
+    private boolean readFile() {
         Set newPatchList = new LinkedHashSet();
 
         try {
@@ -83,38 +70,28 @@ public class PatchInterfaceDB implements Runnable {
                     }
                }
             }
-            synchronized(this) {
-                lastFileLoad = lastMod;
-                patchSrcList = newPatchList;
-            }
-            System.out.println(dateTime() + " Patch Relay Source IP file loaded: " + fileName);
+            patchSources = new PatchSourceSet(new ArrayList(newPatchList));
+            System.out.println(ReloadableFile.dateTime() + " Patch Relay Source IP file loaded: " + fileName);
             fnfReported = false; //reset flag in case file is renamed or removed
+            return true;
         } catch (FileNotFoundException fnfEx) {
            // only report file not found once 
            if (!fnfReported)
            {
-             System.out.println(dateTime() + " Patch Relay Source IP file: " + fileName + " not found.");
+             System.out.println(ReloadableFile.dateTime() + " Patch Relay Source IP file: " + fileName + " not found.");
              fnfReported = true;
            }
         
         }
         catch(Exception ex) {
-            System.out.println(dateTime() + " Can't read database Relay Source IP file: " + fileName);
+            System.out.println(ReloadableFile.dateTime() + " Can't read database Relay Source IP file: " + fileName);
             ex.printStackTrace();
         }
+        return false;
     }
-    
-    private String dateTime() {
-        long now = System.currentTimeMillis();
-        java.sql.Date d = new java.sql.Date(now);
-        java.sql.Time t = new java.sql.Time(now);
-        return d + " " + t;
-    }
-    
+
+    /** Stop watching the file. */
     public void close() {
-        closed = true;
-        if(myThread != null) {
-            myThread.interrupt();
-        }
+        file.close();
     }
 }
@@ -0,0 +1,265 @@
+package relayserver;
+
+import java.util.*;
+
+/**
+ * Immutable set of the relay source addresses allowed to patch, as read from
+ * the PatchInterfaceDB file. Entries are single addresses or CIDR ranges
+ * (e.g. 10.1.0.0/16). IPv4 is held as ints so that lookups don't allocate;
+ * IPv6 entries fall back to comparing address bytes. Any other entry, such
+ * as a host name, only matches a source written exactly the same, as the
+ * file was first used.
+ */
+public class PatchSourceSet {
+
+    public static final PatchSourceSet EMPTY = new PatchSourceSet(new ArrayList());
+
+    private final List entries;     // the entries as written in the file
+    private final int[] v4;         // single IPv4 addresses, sorted
+    private final int[] v4Base;     // IPv4 ranges: network address...
+    private final int[] v4Mask;     // ...and mask
+    private final byte[][] v6Base;  // IPv6 ranges, single addresses being /128
+    private final int[] v6Bits;
+    private final Set others = new HashSet(); // entries that aren't addresses, matched as written
+
+    /**
+     * Build the set from the entries. A range with a bad prefix length is
+     * ignored, so one bad line doesn't stop patching for everyone else; it,
+     * and any entry that will only match as written, is logged.
+     */
+    public PatchSourceSet(List entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList(entries));
+        int[] singles = new int[entries.size()];
+        int nSingles = 0;
+        List bases = new ArrayList();
+        List masks = new ArrayList();
+        List v6b = new ArrayList();
+        List v6n = new ArrayList();
+        for (Iterator i = entries.iterator(); i.hasNext();) {
+            String entry = ((String) i.next()).trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            String addr = entry;
+            int bits = -1;   // -1 for a single address
+            int slash = entry.indexOf('/');
+            if (slash != -1) {
+                addr = entry.substring(0, slash);
+                try {
+                    bits = Integer.parseInt(entry.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    bits = -2;
+                }
+            }
+            long a = parseIPv4(addr);
+            byte[] b = a == -1 && addr.indexOf(':') != -1 ? parseIPv6(addr) : null;
+            if (slash != -1 && (bits < 0 || bits > (b != null ? 128 : 32))) {
+                log("Ignoring patch source " + entry + ", bad prefix length");
+            } else if (a != -1) {
+                if (bits == -1 || bits == 32) {
+                    singles[nSingles++] = (int) a;
+                } else {
+                    int mask = bits == 0 ? 0 : -1 << (32 - bits);
+                    bases.add(Integer.valueOf((int) a & mask));
+                    masks.add(Integer.valueOf(mask));
+                }
+            } else if (b != null) {
+                v6b.add(b);
+                v6n.add(Integer.valueOf(bits == -1 ? 128 : bits));
+            } else if (slash != -1) {
+                log("Ignoring patch source " + entry + ", not an address range");
+            } else {
+                others.add(entry);
+                log("Patch source " + entry + " is not an IP address, it only matches exactly");
+            }
+        }
+        v4 = new int[nSingles];
+        System.arraycopy(singles, 0, v4, 0, nSingles);
+        Arrays.sort(v4);
+        v4Base = toIntArray(bases);
+        v4Mask = toIntArray(masks);
+        v6Base = (byte[][]) v6b.toArray(new byte[v6b.size()][]);
+        v6Bits = toIntArray(v6n);
+    }
+
+    /** True if the relay source address is in the set. */
+    public boolean contains(String ip) {
+        if (ip == null) {
+            return false;
+        }
+        if (!others.isEmpty() && others.contains(ip.trim())) {
+            return true;
+        }
+        long a = parseIPv4(ip);
+        if (a != -1) {
+            int addr = (int) a;
+            if (Arrays.binarySearch(v4, addr) >= 0) {
+                return true;
+            }
+            for (int x = 0 ; x < v4Base.length ; x++) {
+                if ((addr & v4Mask[x]) == v4Base[x]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (v6Base.length == 0 || ip.indexOf(':') == -1) {
+            return false;
+        }
+        byte[] b = parseIPv6(ip.trim());
+        if (b == null) {
+            return false;
+        }
+        for (int x = 0 ; x < v6Base.length ; x++) {
+            if (prefixMatch(b, v6Base[x], v6Bits[x])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The entries as they appeared in the file. */
+    public List getEntries() {
+        return entries;
+    }
+
+    /**
+     * Parse a dotted quad, ignoring surrounding blanks, without allocating.
+     * Returns the address as an unsigned value, or -1 if it isn't one.
+     */
+    static long parseIPv4(String s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        long result = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int x = start ; x < end ; x++) {
+            char c = s.charAt(x);
+            if (c >= '0' && c <= '9') {
+                octet = (octet == -1 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet != -1 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || octet == -1) {
+            return -1;
+        }
+        return (result << 8) | octet;
+    }
+
+    /**
+     * Parse an IPv6 literal, e.g. 2001:db8::1 or ::ffff:10.0.0.1, into 16
+     * bytes, or null if it isn't one. Done here rather than by InetAddress so
+     * a bad entry can never cause a DNS lookup.
+     */
+    static byte[] parseIPv6(String s) {
+        s = s.trim();
+        byte[] b = new byte[16];
+        int gap = -1;   // where :: was, in bytes
+        int n = 0;      // bytes filled
+        int x = 0;
+        int end = s.length();
+        if (s.startsWith("::")) {
+            gap = 0;
+            x = 2;
+        } else if (s.startsWith(":")) {
+            return null;
+        }
+        while (x < end) {
+            if (n == 16) {
+                return null;
+            }
+            int colon = s.indexOf(':', x);
+            int stop = colon == -1 ? end : colon;
+            String group = s.substring(x, stop);
+            if (group.indexOf('.') != -1) {
+                // dotted quad, only as the last 4 bytes
+                long v4 = parseIPv4(group);
+                if (colon != -1 || v4 == -1 || n > 12) {
+                    return null;
+                }
+                for (int y = 3 ; y >= 0 ; y--) {
+                    b[n++] = (byte) (v4 >> (y * 8));
+                }
+                break;
+            }
+            if (group.length() == 0 || group.length() > 4) {
+                return null;
+            }
+            int v = 0;
+            for (int y = 0 ; y < group.length() ; y++) {
+                int d = Character.digit(group.charAt(y), 16);
+                if (d == -1) {
+                    return null;
+                }
+                v = v * 16 + d;
+            }
+            b[n++] = (byte) (v >> 8);
+            b[n++] = (byte) v;
+            if (colon == -1) {
+                break;
+            }
+            x = colon + 1;
+            if (x < end && s.charAt(x) == ':') {
+                if (gap != -1) {
+                    return null;
+                }
+                gap = n;
+                x++;
+            } else if (x == end) {
+                return null; // trailing single colon
+            }
+        }
+        if (gap == -1) {
+            return n == 16 ? b : null;
+        }
+        if (n == 16) {
+            return null; // :: must stand for at least one group
+        }
+        // move what followed the :: to the end
+        int tail = n - gap;
+        System.arraycopy(b, gap, b, 16 - tail, tail);
+        Arrays.fill(b, gap, 16 - tail, (byte) 0);
+        return b;
+    }
+
+    private static void log(String s) {
+        System.out.println(ReloadableFile.dateTime() + " " + s);
+    }
+
+    private static boolean prefixMatch(byte[] a, byte[] base, int bits) {
+        int full = bits / 8;
+        for (int x = 0 ; x < full ; x++) {
+            if (a[x] != base[x]) {
+                return false;
+            }
+        }
+        int rest = bits % 8;
+        if (rest == 0) {
+            return true;
+        }
+        int mask = (0xff << (8 - rest)) & 0xff;
+        return (a[full] & mask) == (base[full] & mask);
+    }
+
+    private static int[] toIntArray(List l) {
+        int[] a = new int[l.size()];
+        for (int x = 0 ; x < a.length ; x++) {
+            a[x] = ((Integer) l.get(x)).intValue();
+        }
+        return a;
+    }
+}
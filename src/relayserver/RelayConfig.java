@@ -0,0 +1,240 @@
+package relayserver;
+
+import java.util.*;
+import common.Constants;
+import ping.ProbeEngine;
+
+/**
+ * The settings the request path needs, read from the ini file properties
+ * into fields once, so a request doesn't look properties up by names built
+ * from its platform and app, or parse command lines and folder names again.
+ * A RelayConfig never changes. The ConfigReloader makes one for each file
+ * it loads and publishes it as current() when it puts the file in use.
+ * Every platform the file has settings for is resolved when it is made, so
+ * problems() can check a newly loaded file before it is put in use.
+ */
+public class RelayConfig {
+
+    /** The apps with a <platform><app>COMMAND. */
+    private static final String[] APPS = { "PING", "TRACEROUTE" };
+    /** What follows the platform name in its settings. */
+    private static final String[] PLATFORM_KEYS = {
+        "PINGCOMMAND", "TRACEROUTECOMMAND", "_TFTPFOLDER",
+        "PINGENGINE", "PINGCOUNT", "PINGPORT", "PINGTIMEOUT", "PINGINTERVAL"
+    };
+    private static final String[] PING_NUMBERS = { "PINGCOUNT", "PINGPORT", "PINGTIMEOUT", "PINGINTERVAL" };
+
+    private static volatile RelayConfig current;
+
+    private final Properties props;
+    private final String ccProhibited;
+    private final String relayServer;
+    private final String runningPlatform;
+    private final String compatibilityVersion;
+    private final Map platforms = new HashMap(); // name -> Platform, not changed once made
+    private final List problems = new ArrayList();
+
+    /** The settings of one platform. */
+    public static class Platform {
+        private final String name;
+        private final Map commands = new HashMap(); // app name -> CommandTemplate
+        private final String[] tftpFolder;          // split around <DOMAIN>, null if not set
+        private final int pingMethod;               // ProbeEngine.TCP or ICMP, -1 for the command
+        private final int pingCount;
+        private final int pingPort;
+        private final int pingTimeout;
+        private final int pingInterval;
+
+        /** @param problems gets what is wrong with the settings */
+        private Platform(String name, Properties props, List problems) {
+            this.name = name;
+            for (int x = 0 ; x < APPS.length ; x++) {
+                String key = name + APPS[x] + "COMMAND";
+                String command = props.getProperty(key);
+                if (command == null) {
+                    continue;
+                }
+                if (command.trim().length() == 0) {
+                    problems.add(key + " is empty");
+                } else {
+                    commands.put(APPS[x], CommandTemplate.get(command));
+                }
+            }
+            String folder = props.getProperty(name + "_TFTPFOLDER");
+            tftpFolder = folder == null ? null : splitDomain(folder);
+            String engine = IniProperties.getString(props, name + "PINGENGINE", "COMMAND");
+            pingMethod = engine.equalsIgnoreCase("TCP") ? ProbeEngine.TCP
+                         : engine.equalsIgnoreCase("ICMP") ? ProbeEngine.ICMP : -1;
+            if (pingMethod == -1 && !engine.equalsIgnoreCase("COMMAND")) {
+                problems.add(name + "PINGENGINE must be TCP, ICMP or COMMAND");
+            }
+            for (int x = 0 ; x < PING_NUMBERS.length ; x++) {
+                String value = props.getProperty(name + PING_NUMBERS[x]);
+                try {
+                    if (value != null) {
+                        Integer.parseInt(value.trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    problems.add(name + PING_NUMBERS[x] + " is not a number");
+                }
+            }
+            pingCount = IniProperties.getInt(props, name + "PINGCOUNT", 4);
+            pingPort = IniProperties.getInt(props, name + "PINGPORT", 23);
+            pingTimeout = IniProperties.getInt(props, name + "PINGTIMEOUT", 1000);
+            pingInterval = IniProperties.getInt(props, name + "PINGINTERVAL", 1000);
+        }
+
+        private static String[] splitDomain(String folder) {
+            List parts = new ArrayList();
+            int from = 0;
+            int at;
+            while ((at = folder.indexOf("<DOMAIN>", from)) != -1) {
+                parts.add(folder.substring(from, at));
+                from = at + "<DOMAIN>".length();
+            }
+            parts.add(folder.substring(from));
+            return (String[]) parts.toArray(new String[parts.size()]);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** The <platform><app>COMMAND, parsed, or null if there isn't one. */
+        public CommandTemplate getCommand(String app) {
+            return (CommandTemplate) commands.get(app);
+        }
+
+        /**
+         * The <platform>_TFTPFOLDER with the domain filled in, or null if
+         * there isn't one.
+         */
+        public String getTftpFolder(String domain) {
+            if (tftpFolder == null) {
+                return null;
+            }
+            StringBuffer sb = new StringBuffer(tftpFolder[0]);
+            for (int x = 1 ; x < tftpFolder.length ; x++) {
+                sb.append(domain).append(tftpFolder[x]);
+            }
+            return sb.toString().trim();
+        }
+
+        /** ProbeEngine.TCP or ICMP, or -1 to run the PING command. */
+        public int getPingMethod() {
+            return pingMethod;
+        }
+
+        public int getPingCount() {
+            return pingCount;
+        }
+
+        public int getPingPort() {
+            return pingPort;
+        }
+
+        public int getPingTimeout() {
+            return pingTimeout;
+        }
+
+        public int getPingInterval() {
+            return pingInterval;
+        }
+    }
+
+    private RelayConfig(Properties props) {
+        this.props = props;
+        ccProhibited = props.getProperty("CC_PROHIBITED", "");
+        relayServer = props.getProperty("RELAYSERVER");
+        String running = IniProperties.getString(props, "RUNNINGPLATFORM", null);
+        runningPlatform = running == null ? null : running.toUpperCase();
+        compatibilityVersion = IniProperties.getString(props, "RELAYCOMPATIBILITYVERSION", null);
+        String[] required = { "RELAYSERVER", "RELAYCOMPATIBILITYVERSION", "RUNNINGPLATFORM" };
+        for (int x = 0 ; x < required.length ; x++) {
+            if (IniProperties.getString(props, required[x], null) == null) {
+                problems.add(required[x] + " not defined");
+            }
+        }
+        for (Iterator i = props.keySet().iterator(); i.hasNext();) {
+            String key = (String) i.next();
+            for (int x = 0 ; x < PLATFORM_KEYS.length ; x++) {
+                if (key.endsWith(PLATFORM_KEYS[x]) && key.length() > PLATFORM_KEYS[x].length()) {
+                    String name = key.substring(0, key.length() - PLATFORM_KEYS[x].length());
+                    if (!platforms.containsKey(name)) {
+                        platforms.put(name, new Platform(name, props, problems));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The settings for a set of properties: the current ones if they are
+     * the properties in use, otherwise made for the caller and not kept.
+     */
+    public static RelayConfig get(Properties props) {
+        RelayConfig c = current;
+        if (c != null && c.props == props) {
+            return c;
+        }
+        return new RelayConfig(props);
+    }
+
+    /**
+     * The settings in use, as published by the ConfigReloader, or made from
+     * Constants.properties if nothing has been published.
+     */
+    public static RelayConfig current() {
+        RelayConfig c = current;
+        return c != null ? c : get(Constants.properties);
+    }
+
+    /** Put settings in use. Only the ConfigReloader does this. */
+    static void publish(RelayConfig c) {
+        current = c;
+    }
+
+    /**
+     * What is wrong with these settings, as messages. Empty if they can be
+     * used.
+     */
+    public List problems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /** The properties the settings were read from. */
+    public Properties getProperties() {
+        return props;
+    }
+
+    /**
+     * A platform's settings, by its name as in requests, e.g. VCMS. A
+     * platform the file has no settings for gets the defaults.
+     */
+    public Platform platform(String name) {
+        Platform p = (Platform) platforms.get(name);
+        return p != null ? p : new Platform(name, props, new ArrayList());
+    }
+
+    /** The CC_PROHIBITED collection types, "" if none. */
+    public String getCcProhibited() {
+        return ccProhibited;
+    }
+
+    public String getRelayServer() {
+        return relayServer;
+    }
+
+    /** The RUNNINGPLATFORM, upper case. */
+    public String getRunningPlatform() {
+        return runningPlatform;
+    }
+
+    /**
+     * The RELAYCOMPATIBILITYVERSION, or the given one (from startup) if it
+     * isn't set.
+     */
+    public String getCompatibilityVersion(String otherwise) {
+        return compatibilityVersion == null ? otherwise : compatibilityVersion;
+    }
+}
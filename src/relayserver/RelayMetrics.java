@@ -0,0 +1,145 @@
+package relayserver;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import common.Logger;
+
+/**
+ * Named counters, gauges and histograms for the relay server. Counters and
+ * histograms are created on first use; gauges are registered by whoever owns
+ * the value. The whole set is written to the log every RELAYMETRICSINTERVAL
+ * seconds.
+ */
+public class RelayMetrics {
+
+    /** A value that is read when the metrics are reported. */
+    public interface Gauge {
+        public long value();
+    }
+
+    /**
+     * Counts of millisecond timings in fixed buckets, reported as the count
+     * at or under each bound.
+     */
+    public static class Histogram {
+        private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+        private final AtomicLong[] counts = new AtomicLong[BOUNDS.length + 1];
+
+        Histogram() {
+            for (int x = 0 ; x < counts.length ; x++) {
+                counts[x] = new AtomicLong();
+            }
+        }
+
+        public void record(long ms) {
+            int x = 0;
+            while (x < BOUNDS.length && ms > BOUNDS[x]) {
+                x++;
+            }
+            counts[x].incrementAndGet();
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer("[");
+            for (int x = 0 ; x < counts.length ; x++) {
+                if (x > 0) {
+                    sb.append(' ');
+                }
+                sb.append(x < BOUNDS.length ? "<=" + BOUNDS[x] : ">" + BOUNDS[BOUNDS.length - 1]);
+                sb.append(':').append(counts[x].get());
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private static final Map counters = new ConcurrentHashMap(); // name -> AtomicLong
+    private static final Map gauges = new ConcurrentHashMap();   // name -> Gauge
+    private static final Map histograms = new ConcurrentHashMap(); // name -> Histogram
+    private static Timer timer;
+
+    private RelayMetrics() {
+    }
+
+    /** Get (creating if needed) the counter with the given name. */
+    public static AtomicLong counter(String name) {
+        AtomicLong c = (AtomicLong) counters.get(name);
+        if (c == null) {
+            synchronized (counters) {
+                c = (AtomicLong) counters.get(name);
+                if (c == null) {
+                    c = new AtomicLong();
+                    counters.put(name, c);
+                }
+            }
+        }
+        return c;
+    }
+
+    /** Get (creating if needed) the histogram with the given name. */
+    public static Histogram histogram(String name) {
+        Histogram h = (Histogram) histograms.get(name);
+        if (h == null) {
+            synchronized (histograms) {
+                h = (Histogram) histograms.get(name);
+                if (h == null) {
+                    h = new Histogram();
+                    histograms.put(name, h);
+                }
+            }
+        }
+        return h;
+    }
+
+    /** Register (or replace) a gauge. */
+    public static void gauge(String name, Gauge g) {
+        gauges.put(name, g);
+    }
+
+    /** Current value of a counter or gauge, 0 if there is none. */
+    public static long get(String name) {
+        AtomicLong c = (AtomicLong) counters.get(name);
+        if (c != null) {
+            return c.get();
+        }
+        Gauge g = (Gauge) gauges.get(name);
+        return g == null ? 0 : g.value();
+    }
+
+    /** Everything as name=value, sorted by name. */
+    public static String report() {
+        Map all = new TreeMap();
+        for (Iterator i = counters.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            all.put(e.getKey(), Long.valueOf(((AtomicLong) e.getValue()).get()));
+        }
+        for (Iterator i = gauges.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            all.put(e.getKey(), Long.valueOf(((Gauge) e.getValue()).value()));
+        }
+        all.putAll(histograms);
+        StringBuffer sb = new StringBuffer("Relay metrics:");
+        for (Iterator i = all.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /** Log the metrics every intervalSecs. 0 turns the logging off. */
+    public static synchronized void startLogging(final Logger logger, long intervalSecs) {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        if (intervalSecs <= 0) {
+            return;
+        }
+        timer = new Timer("RelayMetrics", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                logger.log(report());
+            }
+        }, intervalSecs * 1000, intervalSecs * 1000);
+    }
+}
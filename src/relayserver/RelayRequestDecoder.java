@@ -0,0 +1,88 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import common.RelayRequest;
+
+/**
+ * Accumulates the bytes of a relay request as they arrive and decodes it
+ * once it is complete, for callers that can't block in RelayRequest.read().
+ * RelayRequest only knows how to read from a stream, so each attempt replays
+ * the bytes gathered so far; a request is only a few hundred bytes so this is
+ * cheap.
+ */
+public class RelayRequestDecoder {
+
+    /** Requests bigger than this are assumed to be garbage. */
+    public static final int MAX_REQUEST_LENGTH = 8192;
+
+    private byte[] buf = new byte[512];
+    private int count = 0;
+    private int leftover = 0;
+    private IOException lastFailure;
+
+    /** Add the remaining bytes of src to the request. */
+    public void append(ByteBuffer src) {
+        int n = src.remaining();
+        ensureCapacity(count + n);
+        src.get(buf, count, n);
+        count += n;
+    }
+
+    /** Add len bytes of b to the request. */
+    public void append(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > buf.length) {
+            byte[] nb = new byte[Math.max(needed, buf.length * 2)];
+            System.arraycopy(buf, 0, nb, 0, count);
+            buf = nb;
+        }
+    }
+
+    /**
+     * Try to decode the request from the bytes so far.
+     * Returns null if more bytes are needed.
+     * Throws if the bytes can never make a valid request.
+     */
+    public RelayRequest decode() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(buf, 0, count);
+        RelayRequest rrq = null;
+        try {
+            rrq = RelayRequest.read(in);
+        } catch(IOException ex) {
+            // most likely ran off the end of a partial request
+            lastFailure = ex;
+        }
+        if (rrq == null) {
+            if (count >= MAX_REQUEST_LENGTH) {
+                throw new IOException("Relay request too long");
+            }
+            return null;
+        }
+        leftover = in.available();
+        return rrq;
+    }
+
+    /** The failure from the last incomplete decode, for reporting on timeout. */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    /** Bytes that followed the decoded request. */
+    public ByteBuffer remaining() {
+        return ByteBuffer.wrap(buf, count - leftover, leftover);
+    }
+
+    /** Bytes received so far. */
+    public int size() {
+        return count;
+    }
+}
@@ -8,6 +8,8 @@ import java.io.*;
 import relayserver.PatchInterfaceDB;
 import common.Logger;
 import common.FileLogger;
+import common.RelayRequest;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -15,19 +17,26 @@ import common.FileLogger;
  * Whan a connection arrives, it creates and runs a RequestServicer for that connection.
  *
  */
-public class RelayServer implements Runnable {
+public class RelayServer implements Runnable, HandshakeStage.Handoff {
 
     //static final int PORT = 44276;
-    private static final int BACKLOG = 10;
+    private static final int BACKLOG = 10; // default, RELAYBACKLOG overrides
+    private static final int METRICS_INTERVAL = 300; // seconds, RELAYMETRICSINTERVAL overrides
 
     private String ipString;
     private String relayCompatibilityVersion;
     private ServerSocket ssock;
-    private boolean running = false;
+    private NioRelayEngine nioEngine;
+    private AdmissionController admission;
+    private HandshakeStage handshakes;
+    private TlsSessions tlsSessions;
+    private OnwardConnector connector;
+    private volatile boolean running = false;
     private Logger logger;
     private String lineSep;
     private String name = "Telnet Relay Server";
     private String config;
+    private serviceman.Finder finder;
     private Thread myThread;
     private List logLines = new ArrayList();
 
@@ -53,6 +62,7 @@ public class RelayServer implements Runnable {
         logger = l;
         relayCompatibilityVersion = compat;
         patchdb = new PatchInterfaceDB(patchFileName);
+        RelayThreads.configure(constants.getProperties(), logger);
         if(logFile == null) {
             start("RelayServer", listenIp, null);
         } else {
@@ -73,12 +83,13 @@ public class RelayServer implements Runnable {
     public void start(String name, String config, serviceman.Finder f) throws Exception {
         this.name = name;
         this.config = config;
+        this.finder = f;
         setRunningFlag(true);
-        myThread = new Thread(this);
-        myThread.start();
+        myThread = RelayThreads.start(this, "RelayServer");
     }
 
-    private synchronized void setRunningFlag(boolean b) {
+    // not synchronized: a monitor would pin a virtual thread to its carrier
+    private void setRunningFlag(boolean b) {
         running = b;
     }
 
@@ -95,15 +106,41 @@ public class RelayServer implements Runnable {
             logger.log("Relay Server starting.");
             // create the socket
             InetAddress bindAddress = InetAddress.getByName(ipString);
+            Properties props = constants.getProperties();
+            int backlog = IniProperties.getInt(props, "RELAYBACKLOG", BACKLOG);
+            admission = new AdmissionController(props, logger);
+            tlsSessions = new TlsSessions(props, logger);
+            connector = new OnwardConnector(props);
+            // use the service manager's syslog sender if it is running one
+            if (finder != null) {
+                serviceman.Service syslog = finder.find(IniProperties.getString(props, "SYSLOGSERVICE", "Syslog"));
+                if (syslog instanceof SyslogService) {
+                    SyslogService.use((SyslogService) syslog);
+                }
+            }
+            RelayMetrics.startLogging(logger, IniProperties.getLong(props, "RELAYMETRICSINTERVAL", METRICS_INTERVAL));
+            // RELAYENGINE=NIO selects the selector based engine, otherwise
+            // each connection gets its own RelayWorker thread
+            if ("NIO".equalsIgnoreCase(props.getProperty("RELAYENGINE", "").trim())) {
+                int threads = Runtime.getRuntime().availableProcessors();
+                String s = props.getProperty("RELAYNIOTHREADS");
+                if (s != null) {
+                    threads = Integer.parseInt(s.trim());
+                }
+                nioEngine = new NioRelayEngine(threads, NioRelayEngine.createSSLContext(props),
+                        logger, patchdb, relayCompatibilityVersion, constants, admission, tlsSessions, connector);
+                nioEngine.run(bindAddress, Constants.RELAY_PORT, backlog);
+                return;
+            }
 //            ssock = new ServerSocket(PORT, BACKLOG, bindAddress);
             SecureSocketFactory ssf = new SecureSocketFactory(logger);
-            ssock = ssf.getSSLServerSocket(Constants.RELAY_PORT, BACKLOG, bindAddress);
+            ssock = ssf.getSSLServerSocket(Constants.RELAY_PORT, backlog, bindAddress);
            
-            // loop listening for client connections and making RelayServers for them
+            handshakes = new HandshakeStage(props, logger, relayCompatibilityVersion, admission, tlsSessions, this);
+            // loop listening for client connections and passing them to the handshake stage
             while(true) {
                 Socket sock = ssock.accept();
-                RelayWorker rw = new RelayWorker(sock, logger, patchdb, relayCompatibilityVersion );
-                new Thread(rw).start();
+                handshakes.submit(sock);
             }
         } catch(Exception ex) {
             ex.printStackTrace();
@@ -112,10 +149,26 @@ public class RelayServer implements Runnable {
         }
     }
 
+    /** Called by the HandshakeStage with a complete request: start relaying. */
+    public void requestReceived(Socket sock, RelayRequest rrq, ByteBuffer leftover) {
+        RelayWorker rw = new RelayWorker(sock, rrq, leftover, logger, patchdb, relayCompatibilityVersion, constants,
+                admission, connector);
+        admission.execute(rw, sock);
+    }
+
     /** Close (stop) a service once it is no longer wanted.  */
     public void close() {
         logger.log("Relay Server closing.");
         setRunningFlag(false);
+        if (nioEngine != null) {
+            nioEngine.close();
+        }
+        if (handshakes != null) {
+            handshakes.close();
+        }
+        if (admission != null) {
+            admission.close();
+        }
         try {
             ssock.close();
         } catch(Exception ex) {
@@ -125,7 +178,7 @@ public class RelayServer implements Runnable {
     /** See if the service is still running. This should return
      * false if the Service stops for <b>any</b> reason.
     */
-    public synchronized boolean isRunning() {
+    public boolean isRunning() {
         return running;
     }
 
@@ -0,0 +1,89 @@
+package relayserver;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
+import common.Logger;
+
+/**
+ * Creates the threads that carry relay sessions: the RelayServer accept loop,
+ * RelayWorkers, their RelayHelpers and config collections.
+ * THREADMODE=VIRTUAL in the ini file runs these as virtual threads, so a
+ * large number of idle telnet sessions don't each hold a platform thread.
+ * Virtual threads need Java 21; on older JVMs a warning is logged and
+ * platform threads are used. They are found by reflection so the server
+ * still builds with older compilers.
+ * THREADPINNINGTRACE=short|full turns on the JVM's report of virtual
+ * threads that block while pinned to their carrier (jdk.tracePinnedThreads).
+ */
+public class RelayThreads {
+
+    private static volatile boolean virtual = false;
+    private static Method ofVirtual;   // Thread.ofVirtual()
+    private static Method unstarted;   // Thread.Builder.unstarted(Runnable)
+
+    private RelayThreads() {
+    }
+
+    /** Set the thread mode from the ini properties. */
+    public static synchronized void configure(Properties props, Logger logger) {
+        String mode = props.getProperty("THREADMODE", "PLATFORM").trim();
+        if (!mode.equalsIgnoreCase("VIRTUAL")) {
+            virtual = false;
+            return;
+        }
+        String trace = props.getProperty("THREADPINNINGTRACE");
+        if (trace != null) {
+            // only read when the first virtual thread is created, so set it now
+            System.setProperty("jdk.tracePinnedThreads", trace.trim().toLowerCase());
+        }
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+            unstarted = Class.forName("java.lang.Thread$Builder")
+                             .getMethod("unstarted", new Class[] { Runnable.class });
+            virtual = true;
+            logger.log("Relay sessions will run on virtual threads.");
+        } catch (Exception ex) {
+            virtual = false;
+            logger.log("THREADMODE=VIRTUAL needs Java 21 or later, using platform threads.");
+        }
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /** Create (but don't start) a thread according to the mode. */
+    public static Thread newThread(Runnable r, String name) {
+        Thread t = null;
+        if (virtual) {
+            try {
+                t = (Thread) unstarted.invoke(ofVirtual.invoke(null, new Object[0]), new Object[] { r });
+            } catch (Exception ex) {
+                // can't happen once configure() has found the methods
+                throw new RuntimeException("Can't create virtual thread", ex);
+            }
+        } else {
+            t = new Thread(r);
+        }
+        t.setName(name);
+        return t;
+    }
+
+    /** Create and start a thread according to the mode. */
+    public static Thread start(Runnable r, String name) {
+        Thread t = newThread(r, name);
+        t.start();
+        return t;
+    }
+
+    /** A ThreadFactory for executors, naming threads prefix-n. */
+    public static ThreadFactory factory(final String prefix) {
+        return new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                return RelayThreads.newThread(r, prefix + "-" + (count++));
+            }
+        };
+    }
+}
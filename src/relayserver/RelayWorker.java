@@ -2,13 +2,12 @@ package relayserver;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import common.Logger;
 import common.Constants;
 import common.RelayRequest;
-import common.RelayHelperln;
 import common.RelayReply;
 import common.RelayHelper;
-import ping.TraceRoutePingConverter;
 
 /**
  * This does the relay work for one client connection.
@@ -30,6 +29,12 @@ public class RelayWorker implements Runnable {
     private Logger logger;
     private String relayCompatibilityVersion;
     private PatchInterfaceDB patchifdb;
+    private SessionStats stats;
+    private AdmissionController admission;
+    private String admittedSource; // relay source IP counted in with admission
+    private RelayRequest request;  // already read by the HandshakeStage
+    private byte[] leftover;       // bytes the client sent after its request
+    private OnwardConnector connector;
     private final Constants constants;
 
 
@@ -37,6 +42,31 @@ public class RelayWorker implements Runnable {
      * Constructor for objects of class RelayWorker
      */
     public RelayWorker(Socket clientSocket, Logger logger, PatchInterfaceDB pidb, String relayCompatibilityVersion, Constants c) {
+        this(clientSocket, logger, pidb, relayCompatibilityVersion, c, null, new OnwardConnector(c.getProperties()));
+    }
+
+    /**
+     * Constructor for a RelayWorker given a request already read and checked
+     * by the HandshakeStage, along with anything the client sent after it.
+     */
+    public RelayWorker(Socket clientSocket, RelayRequest rrq, ByteBuffer leftover, Logger logger, PatchInterfaceDB pidb,
+                       String relayCompatibilityVersion, Constants c, AdmissionController admission,
+                       OnwardConnector connector) {
+        this(clientSocket, logger, pidb, relayCompatibilityVersion, c, admission, connector);
+        this.request = rrq;
+        this.leftover = new byte[leftover.remaining()];
+        leftover.get(this.leftover);
+    }
+
+    /**
+     * Constructor for a RelayWorker whose sessions are limited per relay
+     * source IP by an AdmissionController, and whose onward calls are placed
+     * by a shared OnwardConnector.
+     */
+    public RelayWorker(Socket clientSocket, Logger logger, PatchInterfaceDB pidb, String relayCompatibilityVersion, Constants c,
+                       AdmissionController admission, OnwardConnector connector) {
+        this.admission = admission;
+        this.connector = connector;
         constants = c;
         this.clientSocket = clientSocket;
         this.logger = logger;
@@ -71,76 +101,56 @@ public class RelayWorker implements Runnable {
      * new Thread to do it. */
     public void run() {
         Process p = null;
+        LocalRequest local = null;
         Thread.currentThread().setName("RelayWorker");
         boolean forwarding = false;
         try {
         
             clientIn = clientSocket.getInputStream();
             clientOut = clientSocket.getOutputStream();
-            // get the request (with timeout)
-            clientSocket.setSoTimeout(10000);
-            RelayRequest rrq = common.RelayRequest.read(clientIn);
-            logger.log(rrq.toString());
-            clientSocket.setSoTimeout(0);
+            RelayRequest rrq = request;
+            if (rrq == null)
+            {
+              // get the request (with timeout)
+              clientSocket.setSoTimeout(10000);
+              rrq = common.RelayRequest.read(clientIn);
+              logger.log(rrq.toString());
+              clientSocket.setSoTimeout(0);
+            }else if (leftover.length > 0)
+            {
+              clientIn = new SequenceInputStream(new ByteArrayInputStream(leftover), clientIn);
+            }
             //check version compatability. 0 means dont check
-            if ( !relayCompatibilityVersion.equals("0") &&
-                 !rrq.isVersionCompatable(relayCompatibilityVersion))
+            String compat = RelayConfig.current().getCompatibilityVersion(relayCompatibilityVersion);
+            if ( !compat.equals("0") &&
+                 !rrq.isVersionCompatable(compat))
             {
               throw new Exception("Client version incompatible with relay server");
             }
-
-            //determine if call relaying or running a local request
-            if (rrq.appName.equals("PING")||rrq.appName.equals("TRACEROUTE"))
+            if (admission != null)
             {
-              String cmdName = rrq.platform+rrq.appName+"COMMAND";
-              String cmd = constants.getProperties().getProperty(cmdName);
-              if (cmd == null)
-                   throw new Exception(rrq.appName+
-                       " COMMAND not defined for "+rrq.platform);
-              /*
-               * substitute parameters into command
-               */
-              if (rrq.options != null)
-              {
-                String options[] = common.IoUtil.split(rrq.options,',');
-                for (int i=0;i<options.length;i++)
-                {
-                  String opt[] = common.IoUtil.split(options[i],'=');
-                  cmd = common.IoUtil.replace(cmd,opt[0],opt[1]);
-                }
-              }
-              cmd = common.IoUtil.replace(cmd,"<DESTIP>",rrq.relayDstIp);
-              cmd = common.IoUtil.replace(cmd,"<SOURCEIP>",rrq.relaySrcIp);
-
-              p = Runtime.getRuntime().exec(cmd);
-              hostErr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-              /*
-               * at the time of writing, ping on vcms was implemented via
-               * traceroute. The output from traceroute is converted to look
-               * like ping. The test allows switching to ping by simply changing
-               * the command in the ini file (if we ever get a ping that works
-               * on vcms.)
-               */
-              if (rrq.platform.equals("VCMS") && rrq.appName.equals("PING")&&
-                  (cmd.startsWith("/usr/sbin/traceroute") |
-                   cmd.startsWith("tracert")))
-              {
-                hostIn = new TraceRoutePingConverter( p.getInputStream(), hostErr);
-              }else
+              if (!admission.acquireSource(rrq.relaySrcIp))
               {
-                hostIn = p.getInputStream();
+                throw new Exception(admission.sourceBusyMessage(rrq.relaySrcIp));
               }
-              hostOut = p.getOutputStream();
-            }else if (rrq.appName.equals("CONFIG"))
+              admittedSource = rrq.relaySrcIp;
+            }
+
+            //determine if call relaying or running a local request
+            if (LocalRequest.isLocal(rrq))
             {
-              hostIn = new ConfigCollectorStream(rrq, constants);
-              hostOut = System.out;
+              local = LocalRequest.open(rrq, constants,
+                      clientSocket.getInetAddress().getHostAddress());
+              p = local.getProcess();
+              hostIn = local.getHostIn();
+              hostErr = local.getHostErr();
+              hostOut = local.getHostOut();
             }else  // It must be a relay request, IP cross connect patches and any other application 
             {
               if (rrq.appName.startsWith("TCP-"))  // check IP Cross Connect Patch Request is Authorised
               {
                 // only accept if the requested Relay Source Ip address is specified in the Patch interface file.
-                if (patchifdb.patchSrcList.contains(rrq.relaySrcIp.trim())) 
+                if (patchifdb.isAuthorised(rrq.relaySrcIp))
                 {
                   logger.log(rrq.toString().replaceFirst(rrq.KEY,"RequestAccepted:"));
                 }
@@ -153,10 +163,7 @@ public class RelayWorker implements Runnable {
               } 
               // place the ongoing call
               logger.log("About to place ongoing call to destination " + rrq.relayDstIp + " on port " + rrq.relayDstPort);
-              InetAddress localAddr = InetAddress.getByName(rrq.relaySrcIp);
-              logger.log("localAddr = " + localAddr);
-              
-              hostSocket = new Socket(rrq.relayDstIp, rrq.relayDstPort, localAddr, 0);
+              hostSocket = connector.connect(rrq.relaySrcIp, rrq.relayDstIp, rrq.relayDstPort);
               logger.log("hostSocket = " + hostSocket);
               hostIn = hostSocket.getInputStream();
               logger.log("hostIn = " + hostIn);
@@ -169,15 +176,18 @@ public class RelayWorker implements Runnable {
             forwarding = true;
             // create the helpers, one for each direction
             RelayHelper rh1 = null;
-            if (rrq.appName.equals("TRACEROUTE"))
+            RelayHelper rh2 = null;
+            if (local != null)
             {
-                rh1 = new RelayHelperln(hostIn, clientOut, hostErr);
+              rh1 = local.hostToClient(clientOut);
+              rh2 = local.clientToHost(clientIn);
             }else
             {
-              rh1 = new RelayHelper(hostIn, clientOut);
+              stats = new SessionStats();
+              rh1 = new RelayHelper(stats.countToClient(hostIn), clientOut);
+              rh2 = new RelayHelper(stats.countToHost(clientIn), hostOut, p);
             }
-            RelayHelper rh2 = new RelayHelper(clientIn, hostOut, p);
-            new Thread(rh1).start();
+            RelayThreads.start(rh1, "RelayHelper");
             // loop forwarding data
             rh2.run();
         }catch(PatchingNotSupportedException pex) {
@@ -205,8 +215,16 @@ public class RelayWorker implements Runnable {
                 }
             }
         } finally {
+            if (stats != null) {
+              logger.log("Relay session ended, " + stats);
+            }
+            if (admittedSource != null) {
+              admission.releaseSource(admittedSource);
+            }
             // clean up all used resources
-            if (p != null) {
+            if (local != null) {
+              local.close();
+            } else if (p != null) {
               //System.out.println("Killing process");
               p.destroy();
             }
@@ -214,9 +232,11 @@ public class RelayWorker implements Runnable {
             common.IoUtil.close(clientIn);
             common.IoUtil.close(clientOut);
             common.IoUtil.close(clientSocket);
-            common.IoUtil.close(hostIn);
-            common.IoUtil.close(hostErr);
-            common.IoUtil.close(hostOut);
+            if (local == null) {
+              common.IoUtil.close(hostIn);
+              common.IoUtil.close(hostErr);
+              common.IoUtil.close(hostOut);
+            }
             common.IoUtil.close(hostSocket);
         }
     }
@@ -0,0 +1,131 @@
+package relayserver;
+
+import java.io.*;
+
+/**
+ * A file the relay server keeps loaded. It is loaded again as soon as the
+ * FileWatchService sees it change, or, if it can't be watched (or stops
+ * being watchable), when its date changes (checked once a minute). The
+ * owner only supplies the load.
+ */
+public class ReloadableFile implements Runnable, FileWatchService.Listener {
+
+    /** Loads the file and puts it in use. */
+    public interface Loader {
+        /** Returns false if the file wasn't put in use, so it is tried again. */
+        public boolean load();
+    }
+
+    private final String fileName;
+    private final String threadName;
+    private final Loader loader;
+    private long lastFileLoad = -1;
+    private volatile boolean closed; // flag to kill the thread
+    private volatile Thread myThread;
+    private boolean polling;
+
+    /**
+     * @param threadName names the polling thread, if one is needed
+     */
+    public ReloadableFile(String fileName, String threadName, Loader loader) {
+        this.fileName = fileName;
+        this.threadName = threadName;
+        this.loader = loader;
+    }
+
+    /**
+     * Load the file, unless it was loaded already, and watch it for
+     * changes, with a polling thread only if it can't be watched.
+     * Use close() to stop watching.
+     */
+    public void start() {
+        reload(false);
+        if(!FileWatchService.getInstance().register(new File(fileName), this)) {
+            startPolling();
+        }
+    }
+
+    /** Start the polling thread, if it isn't running. */
+    private void startPolling() {
+        synchronized(this) {
+            if(polling || closed) {
+                return;
+            }
+            polling = true;
+        }
+        new Thread(this).start();
+    }
+
+    /** Note that the file, dated lastMod, has been put in use by the owner. */
+    public synchronized void loaded(long lastMod) {
+        lastFileLoad = lastMod;
+    }
+
+    /**
+     * Load the file if its date has changed since the last load, or anyway
+     * if forced. Returns true if it was put in use.
+     */
+    public synchronized boolean reload(boolean force) {
+        long lastMod = new File(fileName).lastModified();
+        if(!force && lastMod == lastFileLoad) {
+            return false;
+        }
+        if(!loader.load()) {
+            return false;
+        }
+        lastFileLoad = lastMod;
+        return true;
+    }
+
+    /** Reload straight away when the FileWatchService sees the file change. */
+    public void fileChanged(File file, long changeTime) {
+        // forced, lastModified may only have 1s resolution
+        if(reload(true)) {
+            long ms = System.currentTimeMillis() - changeTime;
+            RelayMetrics.histogram("reload.ms").record(ms);
+            System.out.println(dateTime() + " Reloaded " + fileName + " " + ms + "ms after change");
+        }
+    }
+
+    /** Poll when the FileWatchService can no longer watch the file. */
+    public void watchLost(File file) {
+        startPolling();
+    }
+
+    /**
+     * Polling fallback, for files that can't be watched: checks the file date
+     * once a minute.
+     */
+    public void run() {
+        if(myThread != null) {
+            throw new RuntimeException("Thread already running!");
+        }
+        myThread = Thread.currentThread();
+        myThread.setName(threadName);
+        while(!closed) {
+            try {
+                Thread.sleep(60000);
+            } catch(InterruptedException ie) {
+            }
+            if(!closed) {
+                reload(false);
+            }
+        }
+    }
+
+    /** The date and time, to start a log line. */
+    public static String dateTime() {
+        long now = System.currentTimeMillis();
+        java.sql.Date d = new java.sql.Date(now);
+        java.sql.Time t = new java.sql.Time(now);
+        return d + " " + t;
+    }
+
+    public void close() {
+        closed = true;
+        FileWatchService.getInstance().unregister(this);
+        if(myThread != null) {
+            myThread.interrupt();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package relayserver;
 
 import common.security.SecureSocketFactory;
 import common.Constants;
+import common.Logger;
 import java.util.*;
 import java.io.*;
 
@@ -28,15 +29,18 @@ public class ServerMain {
      */
     public static void main(String args[]) {
         System.out.println(VERSION);
+        // startup for relay server, loading the properties again when they change
+        try {
+            new ConfigReloader(PROPSFILE);
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+        // JSSE reads the session ticket switch once, before the first TLS is set up
+        TlsSessions.applyTickets(Constants.properties);
         //initialise the secure socket factory for use throughout
         SecureSocketFactory ssf = new SecureSocketFactory();
 
-
-        // startup for relay server
-        loadProperties(PROPSFILE);
-        if (Constants.properties == null) {
-            return;
-        }
         String ip = (String) Constants.properties.get("RELAYSERVER");
         if (ip == null) {
             System.out.println("Property RELAYSERVER not defined.");
@@ -56,28 +60,18 @@ public class ServerMain {
             patchfile = args[2];
         }
         try {
-            RelayServer rs = new RelayServer(ip, logfile, patchfile, compat); //create and launch
+            Logger logger = new Logger() {
+                public void log(String s) {
+                    System.out.println(s);
+                }
+            };
+            RelayServer rs = new RelayServer(ip, logfile, patchfile, compat, new Constants(), logger); //create and launch
         } catch (Exception ex) {
             ex.printStackTrace();
             System.exit(1);
         }
     }
 
-}
-
-private static void loadProperties(String filename) {
-        try {
-            Properties p = new Properties();
-            FileInputStream fis = new FileInputStream(filename);
-            p.load(fis);
-            Constants.properties = p;
-            Constants.runningPlatform = p.getProperty("RUNNINGPLATFORM")
-                                                        .trim().toUpperCase();  
-        } catch(Exception ex) {
-            System.out.println(ex.getMessage());
-        }
-    }
-    
     public static Properties getProperties() {
         return Constants.properties;
     }
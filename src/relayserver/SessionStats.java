@@ -0,0 +1,85 @@
+package relayserver;
+
+import java.io.*;
+
+/**
+ * Byte counts and throughput of one relayed session, in each direction.
+ * Logged when the session ends so the relay engines can be compared.
+ */
+public class SessionStats {
+
+    private final long start = System.currentTimeMillis();
+    private volatile long toHost = 0;   // only ever updated by one thread
+    private volatile long toClient = 0; // ditto
+
+    public void addToHost(long n) {
+        toHost += n;
+    }
+
+    public void addToClient(long n) {
+        toClient += n;
+    }
+
+    public long getToHost() {
+        return toHost;
+    }
+
+    public long getToClient() {
+        return toClient;
+    }
+
+    /** Milliseconds since the session started relaying. */
+    public long getElapsed() {
+        return Math.max(1, System.currentTimeMillis() - start);
+    }
+
+    /** Wrap the stream the client's data is read from. */
+    public InputStream countToHost(InputStream in) {
+        return new CountingInputStream(in, true);
+    }
+
+    /** Wrap the stream the host's data is read from. */
+    public InputStream countToClient(InputStream in) {
+        return new CountingInputStream(in, false);
+    }
+
+    public String toString() {
+        long ms = getElapsed();
+        return "to host " + toHost + " bytes (" + (toHost * 1000 / ms) + " B/s), " +
+               "to client " + toClient + " bytes (" + (toClient * 1000 / ms) + " B/s) " +
+               "in " + ms + "ms";
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean hostBound;
+
+        CountingInputStream(InputStream in, boolean hostBound) {
+            super(in);
+            this.hostBound = hostBound;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) {
+            if (hostBound) {
+                addToHost(n);
+            } else {
+                addToClient(n);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import common.Constants;
+import configcollector.Syslogger;
+
+/**
+ * The one syslog sender for the relay server. Messages from any thread are
+ * put on a lock-free queue and sent in batches by the service's own thread
+ * through a single DatagramChannel, so logging never blocks a collection;
+ * if the queue is full the message is dropped and counted instead. The
+ * Syslogger given to config collectors is shared too. The targets are
+ * taken from SYSLOGTO (space separated host or host:port, port 514 by
+ * default) and only looked up again when the property changes, outside
+ * the service lock.
+ * It can be run by the service manager (the relay server finds it by the
+ * name in SYSLOGSERVICE, default Syslog), or is started on first use.
+ * Settings from the ini file:
+ * SYSLOGFACILITY - facility number of the messages (default 23, local7).
+ * SYSLOGMAXQUEUED - messages waiting to be sent, more are dropped (default 10000).
+ */
+public class SyslogService implements serviceman.Service, Runnable {
+
+    public static final int WARNING = 4;
+    public static final int INFO = 6;
+
+    private static final int PORT = 514;
+    private static final int BATCH = 64;
+    private static final int MAX_MESSAGE = 1024;
+
+    private static SyslogService shared;
+
+    private final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue(); // of Message
+    private final AtomicInteger queued = new AtomicInteger();
+    private DatagramChannel channel;
+    private String host;
+    private int facility;
+    private int maxQueued;
+    private volatile Thread sender;
+    private volatile boolean idle;
+    private volatile boolean closed;
+    private volatile boolean isRunning;
+    private String targetSpec;                       // SYSLOGTO the targets came from
+    private volatile List targets = new ArrayList(); // of InetSocketAddress
+    private volatile Syslogger syslogger;
+    // only used by the sender thread
+    private final SimpleDateFormat stamp = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.ENGLISH);
+
+    /** A queued message, given its timestamp when it is sent. */
+    private static class Message {
+        final long time;
+        final int priority;
+        final String text;
+
+        Message(long time, int priority, String text) {
+            this.time = time;
+            this.priority = priority;
+            this.text = text;
+        }
+    }
+
+    /** The service in use, starting one if the service manager hasn't. */
+    public static synchronized SyslogService getShared() {
+        if (shared == null) {
+            SyslogService s = new SyslogService();
+            try {
+                s.start("Syslog", "", null);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            shared = s;
+        }
+        return shared;
+    }
+
+    /** Use a service started by the service manager. */
+    public static synchronized void use(SyslogService s) {
+        shared = s;
+    }
+
+    public void start(String name, String config, serviceman.Finder finder) throws Exception {
+        Properties props = Constants.properties;
+        facility = IniProperties.getInt(props, "SYSLOGFACILITY", 23);
+        maxQueued = IniProperties.getInt(props, "SYSLOGMAXQUEUED", 10000);
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException ex) {
+            host = "relayserver";
+        }
+        channel = DatagramChannel.open();
+        RelayMetrics.gauge("syslog.queued", new RelayMetrics.Gauge() {
+            public long value() {
+                return queued.get();
+            }
+        });
+        isRunning = true;
+        sender = RelayThreads.start(this, "SyslogService");
+    }
+
+    /**
+     * The Syslogger for config collectors, built again only when SYSLOGTO
+     * changes. Null if there are no targets.
+     */
+    public Syslogger getSyslogger() {
+        refreshTargets();
+        return syslogger;
+    }
+
+    /** Queue a message for the targets. Never blocks. */
+    public void send(int severity, String tag, String message) {
+        if (closed || queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            RelayMetrics.counter("syslog.dropped").incrementAndGet();
+            return;
+        }
+        queue.add(new Message(System.currentTimeMillis(), facility * 8 + severity,
+                              " " + host + " " + tag + ": " + message));
+        if (idle) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /** The RFC 3164 timestamp, e.g. "Oct  7 09:05:01". Sender thread only. */
+    private String timestamp(long time) {
+        String s = stamp.format(new Date(time));
+        return s.charAt(4) == '0' ? s.substring(0, 4) + ' ' + s.substring(5) : s;
+    }
+
+    /**
+     * Look the targets up again if SYSLOGTO has changed. The lookup is done
+     * without the lock, which is only held to check and swap the targets.
+     */
+    private void refreshTargets() {
+        String spec = IniProperties.getString(RelayConfig.current().getProperties(), "SYSLOGTO", "");
+        synchronized (this) {
+            if (spec.equals(targetSpec)) {
+                return;
+            }
+        }
+        List l = new ArrayList();
+        Syslogger s = null;
+        StringTokenizer st = new StringTokenizer(spec);
+        while (st.hasMoreTokens()) {
+            String t = st.nextToken();
+            if (s == null) {
+                s = new Syslogger();
+            }
+            s.addTarget(t);
+            int colon = t.indexOf(':');
+            try {
+                l.add(colon == -1 ? new InetSocketAddress(t, PORT)
+                      : new InetSocketAddress(t.substring(0, colon), Integer.parseInt(t.substring(colon + 1))));
+            } catch (RuntimeException ex) {
+                System.out.println("Bad syslog target " + t + ": " + ex);
+            }
+        }
+        synchronized (this) {
+            if (!spec.equals(targetSpec)) {
+                targetSpec = spec;
+                targets = l;
+                syslogger = s;
+            }
+        }
+    }
+
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_MESSAGE);
+        try {
+            while (!closed) {
+                if (queue.isEmpty()) {
+                    idle = true;
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(1000000000L);
+                    }
+                    idle = false;
+                    continue;
+                }
+                refreshTargets();
+                List to = targets;
+                Message msg;
+                for (int n = 0 ; n < BATCH && (msg = (Message) queue.poll()) != null ; n++) {
+                    queued.decrementAndGet();
+                    byte[] b = ("<" + msg.priority + ">" + timestamp(msg.time) + msg.text).getBytes();
+                    buf.clear();
+                    buf.put(b, 0, Math.min(b.length, MAX_MESSAGE));
+                    buf.flip();
+                    for (int x = 0 ; x < to.size() ; x++) {
+                        buf.rewind();
+                        try {
+                            channel.send(buf, (InetSocketAddress) to.get(x));
+                            RelayMetrics.counter("syslog.sent").incrementAndGet();
+                        } catch (IOException ex) {
+                            RelayMetrics.counter("syslog.errors").incrementAndGet();
+                        }
+                    }
+                }
+            }
+        } finally {
+            isRunning = false;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        LockSupport.unpark(sender);
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+}
@@ -4,21 +4,80 @@ package relayserver;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import common.Constants;
 import common.IoUtil;
 
 /**
  * This class caches a text database of domains and devices.
- * 
+ * Lines are parsed into Domain and Device records, indexed by name, device
+ * IP, platform and (sorted) device name for prefix searches. Each load is
+ * published as one immutable Snapshot, so readers never lock and always see
+ * a consistent set of indexes.
+ * A reload reads the whole file and rebuilds the indexes, so it still costs
+ * in proportion to the database; only the parsing is incremental. The
+ * DOMAIN blocks (a DOMAIN line and the DEVICE lines after it) that differ
+ * from the last load are parsed and the records of unchanged blocks are
+ * reused.
+ * A repeated DOMAIN replaces the earlier block as the domain, but the
+ * earlier block's devices can still be found by name and IP. Device names
+ * are qualified by their domain so are expected to be unique, a duplicate
+ * resolves to the last in the file. Both hold for mapped snapshots too.
+ * With TEXTDBMAPPED=Y in the ini file each load is compiled to a new binary
+ * snapshot beside the text file (see MappedTextDB), which is memory mapped
+ * and queried in place instead of being held on the heap. A snapshot that
+ * still matches the text file is used as is at startup.
+ * Services in one server should share the instance from getShared() rather
+ * than each load and watch the file.
  */
-public class TextDataBase implements Runnable {
+public class TextDataBase {
     
+    private static final Map shared = new HashMap(); // absolute file name -> TextDataBase
+
     private String fileName;
-    private volatile boolean closed; // flag to kill the thread
-    private long lastFileLoad = -1;
-    private Map domMap = new HashMap(); // Map of domainName -> Domain
-    private Map devListMap = new HashMap(); // domainName -> List of devices
-    private Map devMap = new HashMap(); // Map devName -> device
-    private volatile Thread myThread;
+    private volatile Snapshot snap = new Snapshot(); // replaced wholesale on reload
+    private final boolean mappedMode;
+    private volatile MappedTextDB mapped; // used instead of snap when not null
+    private final ReloadableFile file;
+
+    /** One DOMAIN block of the file. */
+    private static class Block {
+        final String domLine;   // DOMAIN line without the key
+        final List devLines;    // DEVICE lines without the key
+        Domain domain;          // parsed when the block is new or changed
+        List devices;           // of Device
+
+        Block(String domLine) {
+            this.domLine = domLine;
+            devLines = new ArrayList();
+        }
+
+        boolean sameAs(Block b) {
+            return b != null && domLine.equals(b.domLine) && devLines.equals(b.devLines);
+        }
+    }
+
+    /** All the indexes for one load. Never modified once published. */
+    private static class Snapshot {
+        final Map blocks;      // domainName -> last Block of that name, in file order
+        final List all;        // every Block in file order, replaced ones too
+        final Map devices;     // devName -> Device
+        final TreeMap names;   // devName -> Device, for prefix searches
+        final Map byIp;        // device ip -> List of Device
+        final Map byPlatform;  // platform -> List of Domain
+
+        Snapshot() {
+            this(new LinkedHashMap(), new ArrayList());
+        }
+
+        Snapshot(Map blocks, List all) {
+            this.blocks = blocks;
+            this.all = all;
+            devices = new HashMap();
+            names = new TreeMap();
+            byIp = new HashMap();
+            byPlatform = new HashMap();
+        }
+    }
 
 /* Database format:
 !
@@ -32,118 +91,435 @@ DEVICE	iptndev.local	172.50.72.40	127.0.0.1	private	Y TELNET
 */
 
     /**
-     * Create a TextDataBase and start the file refresh thread.
-     * Use close() to kill the thread.
+     * Create a TextDataBase, load the file and watch it for changes,
+     * with a refresh thread only if it can't be watched.
+     * Use close() to stop watching.
      */
     public TextDataBase(String filename) {
+        this(filename, Constants.properties != null
+                && IniProperties.getBoolean(Constants.properties, "TEXTDBMAPPED", false));
+    }
+
+    /**
+     * As above.
+     * @param mapped true to serve from a memory mapped binary snapshot
+     */
+    public TextDataBase(String filename, boolean mapped) {
         fileName = filename;
-        new Thread(this).start();
+        mappedMode = mapped;
+        file = new ReloadableFile(fileName, "TextDataBase file watcher", new ReloadableFile.Loader() {
+            public boolean load() {
+                return readFile();
+            }
+        });
+        if(mapped) {
+            File f = new File(fileName);
+            long lastMod = f.lastModified();
+            this.mapped = MappedTextDB.openLatest(f);
+            if(this.mapped != null) {
+                file.loaded(lastMod);
+                MappedTextDB.deleteOld(f, this.mapped.getFile());
+                System.out.println(ReloadableFile.dateTime() + " File mapped: " + this.mapped.getFile());
+            }
+        }
+        file.start();
     }
     
+    /**
+     * The TextDataBase of a file shared by everything in the server, loaded
+     * the first time it is asked for. It is never closed.
+     */
+    public static TextDataBase getShared(String filename) {
+        String key = new File(filename).getAbsolutePath();
+        synchronized(shared) {
+            TextDataBase db = (TextDataBase) shared.get(key);
+            if(db == null) {
+                db = new TextDataBase(filename);
+                shared.put(key, db);
+            }
+            return db;
+        }
+    }
+
     /** Iterate the DOMAIN lines. */
-    public synchronized Iterator domains() {
-        return domMap.values().iterator();
+    public Iterator domains() {
+        final MappedTextDB m = mapped;
+        if(m != null) {
+            return new Iterator() {
+                int x;
+
+                public boolean hasNext() {
+                    while(x < m.domainCount() && !m.isCurrentDomain(x)) {
+                        x++;
+                    }
+                    return x < m.domainCount();
+                }
+                public Object next() {
+                    if(!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return m.domainLine(x++);
+                }
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        final Iterator i = snap.blocks.values().iterator();
+        return new Iterator() {
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+            public Object next() {
+                return ((Block) i.next()).domLine;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
     
     /** Iterate the Devices in a domain. 
      * Returns null if no such domain. */
-    public synchronized Iterator devices(String domainName) {
-        List devs = (List) devListMap.get(domainName);
-        if(devs == null) {
+    public Iterator devices(String domainName) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.domainIndex(domainName);
+            if(d == -1) {
+                return null;
+            }
+            List devs = new ArrayList(m.deviceCount(d));
+            for(int x = 0 ; x < m.deviceCount(d) ; x++) {
+                devs.add(m.deviceLine(m.firstDevice(d) + x));
+            }
+            return devs.iterator();
+        }
+        Block b = (Block) snap.blocks.get(domainName);
+        if(b == null) {
             return null;
         }
-        return devs.iterator();
+        return Collections.unmodifiableList(b.devLines).iterator();
     }
     
     /** Get one Domain by name. */
-    public synchronized String getDomain(String name) {
-        return (String) domMap.get(name);
+    public String getDomain(String name) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.domainIndex(name);
+            return d == -1 ? null : m.domainLine(d);
+        }
+        Domain d = findDomain(name);
+        return d == null ? null : d.toString();
     }
     
     /** Get one Device by name. */
-    public synchronized String getDevice(String name) {
-        return (String) devMap.get(name);
+    public String getDevice(String name) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.deviceIndex(name);
+            return d == -1 ? null : m.deviceLine(d);
+        }
+        Device d = findDevice(name);
+        return d == null ? null : d.toString();
     }
-    
-    /**
-     * Infinite loop checking the file date once a minute. 
-     * re-reads the file if changed.
-     */
-    public void run() {
-        if(myThread != null) {
-            throw new RuntimeException("Thread already running!");
+
+    /** The parsed Domain, or null if no such domain. */
+    public Domain findDomain(String name) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.domainIndex(name);
+            return d == -1 ? null : new Domain(m.domainLine(d));
         }
-        myThread = Thread.currentThread();
-        myThread.setName("TextDataBase file watcher");
-        while(!closed) {
-            readFile();
-            try {
-                Thread.sleep(60000);
-            } catch(InterruptedException ie) {
+        Block b = (Block) snap.blocks.get(name);
+        return b == null ? null : b.domain;
+    }
+
+    /** The parsed Device, or null if no such device. */
+    public Device findDevice(String name) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.deviceIndex(name);
+            return d == -1 ? null : mappedDevice(m, d, null);
+        }
+        return (Device) snap.devices.get(name);
+    }
+
+    /** The Devices in a domain, null if no such domain. */
+    public List deviceList(String domainName) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            int d = m.domainIndex(domainName);
+            if(d == -1) {
+                return null;
+            }
+            Domain dom = new Domain(m.domainLine(d));
+            List devs = new ArrayList(m.deviceCount(d));
+            for(int x = 0 ; x < m.deviceCount(d) ; x++) {
+                devs.add(mappedDevice(m, m.firstDevice(d) + x, dom));
             }
+            return devs;
         }
+        Block b = (Block) snap.blocks.get(domainName);
+        return b == null ? null : b.devices;
     }
-    
-    /** Read the database file only if it has been modified. */
-    private void readFile() {
+
+    /** The Devices with an IP address. Never null. */
+    public List devicesByIp(String ip) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            return mappedDevices(m, m.devicesByIp(ip));
+        }
+        List l = (List) snap.byIp.get(ip);
+        return l == null ? Collections.EMPTY_LIST : Collections.unmodifiableList(l);
+    }
+
+    /** All the Domains, in file order. */
+    public List domainList() {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            List doms = new ArrayList(m.domainCount());
+            for(int x = 0 ; x < m.domainCount() ; x++) {
+                if(m.isCurrentDomain(x)) {
+                    doms.add(new Domain(m.domainLine(x)));
+                }
+            }
+            return doms;
+        }
+        Collection blocks = snap.blocks.values();
+        List doms = new ArrayList(blocks.size());
+        for(Iterator i = blocks.iterator(); i.hasNext();) {
+            doms.add(((Block) i.next()).domain);
+        }
+        return doms;
+    }
+
+    /** The Domains on a platform. Never null. */
+    public List domainsByPlatform(String platform) {
+        platform = platform.toUpperCase();
+        MappedTextDB m = mapped;
+        if(m != null) {
+            // domains are few enough to scan
+            List doms = new ArrayList();
+            for(int x = 0 ; x < m.domainCount() ; x++) {
+                Domain d = new Domain(m.domainLine(x));
+                if(d.getPlatform().equals(platform) && m.isCurrentDomain(x)) {
+                    doms.add(d);
+                }
+            }
+            return doms;
+        }
+        List l = (List) snap.byPlatform.get(platform);
+        return l == null ? Collections.EMPTY_LIST : Collections.unmodifiableList(l);
+    }
+
+    /** Iterate the Devices on a platform. */
+    public Iterator devicesByPlatform(String platform) {
+        final Iterator doms = domainsByPlatform(platform).iterator();
+        return new Iterator() {
+            Iterator devs = Collections.EMPTY_LIST.iterator();
+
+            public boolean hasNext() {
+                while(!devs.hasNext() && doms.hasNext()) {
+                    List l = deviceList(((Domain) doms.next()).getName());
+                    if(l != null) {
+                        devs = l.iterator();
+                    }
+                }
+                return devs.hasNext();
+            }
+            public Object next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return devs.next();
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** The Devices whose names start with prefix, in name order. */
+    public Collection devicesWithPrefix(String prefix) {
+        MappedTextDB m = mapped;
+        if(m != null) {
+            return mappedDevices(m, m.devicesWithPrefix(prefix));
+        }
+        return Collections.unmodifiableCollection(
+                snap.names.subMap(prefix, prefix + Character.MAX_VALUE).values());
+    }
+
+    private static Device mappedDevice(MappedTextDB m, int x, Domain dom) {
+        if(dom == null) {
+            dom = new Domain(m.domainLine(m.deviceDomain(x)));
+        }
+        return new Device(m.deviceLine(x), dom);
+    }
+
+    private static List mappedDevices(MappedTextDB m, int[] found) {
+        List devs = new ArrayList(found.length);
+        for(int x = 0 ; x < found.length ; x++) {
+            devs.add(mappedDevice(m, found[x], null));
+        }
+        return devs;
+    }
+
+    /** Read the database file. */
+    private boolean readFile() {
         File f = new File(fileName);
         long lastMod = f.lastModified();
-        if(lastFileLoad == lastMod) {
-            return;
-        }
-        Map newDevMap = new HashMap();
-        Map newDomMap = new HashMap();
-        Map newDevListMap = new HashMap();
         try {
             List lines = IoUtil.readFileLines(fileName);
-            String domName = null;
-            List devList = null;
+            Map newBlocks = new LinkedHashMap();
+            List all = new ArrayList();
+            Block block = null;
             for(int x = 0 ; x < lines.size() ; x++) {
                 String line = (String) lines.get(x);
                 if(line.startsWith("DOMAIN\t")) {
                     String[] fields = IoUtil.split(line, '\t');
                     if(fields.length > 2) {
-                        domName = fields[1];    // keep this name for following DEVICE lines
-                        String domStr = line.substring(7);
-                        newDomMap.put(domName, domStr);
-                        devList = new ArrayList();
-                        newDevListMap.put(domName, devList);
+                        block = new Block(line.substring(7));
+                        newBlocks.put(fields[1].trim(), block); // a repeated domain replaces the earlier one
+                        all.add(block);
                     }
                 }
-                else if(line.startsWith("DEVICE\t")) {
+                else if(line.startsWith("DEVICE\t") && block != null) {
                     String[] fields = IoUtil.split(line, '\t');
                     if(fields.length > 2) {
-                        String name = fields[1];
-                        String devStr = line.substring(7);
-                        devList.add(devStr);
-                        newDevMap.put(name, devStr);
+                        block.devLines.add(line.substring(7));
                     }
                 }
             }
+            if(mappedMode && compile(all, lastMod, f.length())) {
+                synchronized(this) {
+                    snap = new Snapshot();
+                }
+                System.out.println(ReloadableFile.dateTime() + " File loaded: " + fileName + " (mapped " + mapped.getFile() + ")");
+                return true;
+            }
+            Map old = new HashMap(); // domLine -> Block of the last load
+            for(Iterator i = snap.all.iterator(); i.hasNext();) {
+                Block b = (Block) i.next();
+                old.put(b.domLine, b);
+            }
+            Snapshot s = new Snapshot(newBlocks, all);
+            int changed = 0;
+            for(int x = 0 ; x < all.size() ; x++) {
+                Block b = (Block) all.get(x);
+                Block ob = (Block) old.get(b.domLine);
+                if(b.sameAs(ob)) {
+                    b.domain = ob.domain;
+                    b.devices = ob.devices;
+                } else {
+                    parse(b);
+                    changed++;
+                }
+                index(s, b, newBlocks.get(b.domain.getName()) == b);
+            }
             synchronized(this) {
-                lastFileLoad = lastMod;
-                devMap = newDevMap;
-                domMap = newDomMap;
-                devListMap = newDevListMap;
+                snap = s;
+                mapped = null;
             }
-            System.out.println(dateTime() + " File loaded: " + fileName);
+            System.out.println(ReloadableFile.dateTime() + " File loaded: " + fileName + " (" + changed + " of " + all.size() + " domains parsed)");
+            return true;
         } catch(Exception ex) {
-            System.out.println(dateTime() + " Can't read database file: " + fileName);
+            System.out.println(ReloadableFile.dateTime() + " Can't read database file: " + fileName);
             ex.printStackTrace();
         }
+        return false;
     }
-    
-    private String dateTime() {
-        long now = System.currentTimeMillis();
-        java.sql.Date d = new java.sql.Date(now);
-        java.sql.Time t = new java.sql.Time(now);
-        return d + " " + t;
+
+    /** Write and map a binary snapshot, false (and stay on the heap) if that fails. */
+    private boolean compile(List blocks, long lastMod, long length) {
+        List domLines = new ArrayList(blocks.size());
+        List devLines = new ArrayList(blocks.size());
+        for(Iterator i = blocks.iterator(); i.hasNext();) {
+            Block b = (Block) i.next();
+            domLines.add(b.domLine);
+            devLines.add(b.devLines);
+        }
+        File src = new File(fileName);
+        File bin = MappedTextDB.nextGeneration(src);
+        try {
+            MappedTextDB.write(bin, lastMod, length, domLines, devLines);
+            MappedTextDB m = MappedTextDB.open(bin, src);
+            if(m == null) {
+                bin.delete();
+                System.out.println(ReloadableFile.dateTime() + " " + fileName + " changed while compiling, kept on heap");
+                return false;
+            }
+            mapped = m;
+            // the last generation is unmapped once collected, so is deleted next time
+            MappedTextDB.deleteOld(src, bin);
+            return true;
+        } catch(IOException ex) {
+            System.out.println(ReloadableFile.dateTime() + " Can't write " + bin + ": " + ex);
+            return false;
+        }
     }
-    
-    public void close() {
-        closed = true;
-        if(myThread != null) {
-            myThread.interrupt();
+
+    private static void parse(Block b) {
+        b.domain = new Domain(b.domLine);
+        List devs = new ArrayList(b.devLines.size());
+        for(int x = 0 ; x < b.devLines.size() ; x++) {
+            devs.add(new Device((String) b.devLines.get(x), b.domain));
+        }
+        b.devices = Collections.unmodifiableList(devs);
+    }
+
+    /**
+     * Add a block's records to the snapshot's indexes, in file order so a
+     * later device of the same name replaces an earlier one.
+     * @param current false if a later block of the same domain replaced it
+     */
+    private static void index(Snapshot s, Block b, boolean current) {
+        if(current) {
+            add(s.byPlatform, b.domain.getPlatform(), b.domain);
         }
+        for(int x = 0 ; x < b.devices.size() ; x++) {
+            Device d = (Device) b.devices.get(x);
+            s.devices.put(d.getName(), d);
+            s.names.put(d.getName(), d);
+            add(s.byIp, d.getIp(), d);
+        }
+    }
+
+    private static void add(Map m, Object key, Object o) {
+        List l = (List) m.get(key);
+        if(l == null) {
+            l = new ArrayList(1);
+            m.put(key, l);
+        }
+        l.add(o);
+    }
+
+    /**
+     * Split a line into its tab separated fields. The last column is
+     * sometimes separated by blanks instead, so the last field is split on
+     * blanks as well.
+     */
+    static String[] fields(String line) {
+        String[] f = IoUtil.split(line, '\t');
+        String last = f[f.length - 1].trim();
+        if(last.indexOf(' ') == -1) {
+            return f;
+        }
+        StringTokenizer st = new StringTokenizer(last);
+        String[] all = new String[f.length - 1 + st.countTokens()];
+        System.arraycopy(f, 0, all, 0, f.length - 1);
+        for(int x = f.length - 1 ; st.hasMoreTokens() ; x++) {
+            all[x] = st.nextToken();
+        }
+        return all;
+    }
+
+    /** A field, trimmed, or an empty string if there aren't that many. */
+    static String field(String[] fields, int x) {
+        return x < fields.length ? fields[x].trim() : "";
+    }
+
+    /** Stop watching the file. */
+    public void close() {
+        file.close();
     }
 }
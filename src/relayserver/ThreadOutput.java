@@ -0,0 +1,229 @@
+package relayserver;
+
+import java.io.*;
+import java.util.Locale;
+import common.buffwriter.BuffWriterStream;
+
+/**
+ * Installed once as System.out, this sends what each thread prints to the
+ * sink that thread has been given, and everything else to the real
+ * System.out. Code such as the config collector that can only print to
+ * System.out can then be captured per request without swapping System.out,
+ * so many captures can run at once. A thread's sink is inherited by the
+ * threads it starts, until the capture ends. There is no lock shared
+ * between threads: each sink and the real System.out have their own.
+ */
+public class ThreadOutput extends PrintStream {
+
+    private static final InheritableThreadLocal capture = new InheritableThreadLocal(); // Capture
+    private static ThreadOutput installed;
+
+    private final PrintStream real;
+
+    /** One thread's sink. */
+    private static class Capture {
+        final PrintStream ps;
+        volatile boolean ended;
+
+        Capture(PrintStream ps) {
+            this.ps = ps;
+        }
+    }
+
+    /** Hands each complete line on to a BuffWriterStream. */
+    private static class LineSink extends OutputStream {
+        private final BuffWriterStream to;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineSink(BuffWriterStream to) {
+            this.to = to;
+        }
+
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                to.writeln(text());
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int x = off ; x < off + len ; x++) {
+                write(b[x]);
+            }
+        }
+
+        /** Pass on any unfinished line. */
+        public synchronized void close() {
+            if (line.size() > 0) {
+                to.write(text());
+            }
+        }
+
+        private String text() {
+            String s = line.toString();
+            line.reset();
+            return s;
+        }
+    }
+
+    private ThreadOutput(PrintStream real) {
+        super(real, true);
+        this.real = real;
+    }
+
+    /** Put the router in place of System.out, if it isn't already. */
+    public static synchronized void install() {
+        if (installed == null) {
+            installed = new ThreadOutput(System.out);
+            System.setOut(installed);
+        }
+    }
+
+    /**
+     * Send what this thread (and threads it starts) prints to a
+     * BuffWriterStream, until end() is called.
+     */
+    public static void begin(BuffWriterStream to) {
+        install();
+        capture.set(new Capture(new PrintStream(new LineSink(to), true)));
+    }
+
+    /** Stop capturing this thread's output, passing on anything unfinished. */
+    public static void end() {
+        Capture c = (Capture) capture.get();
+        capture.set(null);
+        if (c != null) {
+            c.ended = true;  // for any threads that inherited it
+            c.ps.close();
+        }
+    }
+
+    /** Where the current thread's output goes. */
+    private PrintStream out() {
+        Capture c = (Capture) capture.get();
+        return c == null || c.ended ? real : c.ps;
+    }
+
+    public void write(int b) {
+        out().write(b);
+    }
+
+    public void write(byte[] buf, int off, int len) {
+        out().write(buf, off, len);
+    }
+
+    public void flush() {
+        out().flush();
+    }
+
+    /** System.out is never really closed. */
+    public void close() {
+        out().flush();
+    }
+
+    public boolean checkError() {
+        return out().checkError();
+    }
+
+    public void print(boolean b) {
+        out().print(b);
+    }
+
+    public void print(char c) {
+        out().print(c);
+    }
+
+    public void print(int i) {
+        out().print(i);
+    }
+
+    public void print(long l) {
+        out().print(l);
+    }
+
+    public void print(float f) {
+        out().print(f);
+    }
+
+    public void print(double d) {
+        out().print(d);
+    }
+
+    public void print(char[] s) {
+        out().print(s);
+    }
+
+    public void print(String s) {
+        out().print(s);
+    }
+
+    public void print(Object obj) {
+        out().print(obj);
+    }
+
+    public void println() {
+        out().println();
+    }
+
+    public void println(boolean x) {
+        out().println(x);
+    }
+
+    public void println(char x) {
+        out().println(x);
+    }
+
+    public void println(int x) {
+        out().println(x);
+    }
+
+    public void println(long x) {
+        out().println(x);
+    }
+
+    public void println(float x) {
+        out().println(x);
+    }
+
+    public void println(double x) {
+        out().println(x);
+    }
+
+    public void println(char[] x) {
+        out().println(x);
+    }
+
+    public void println(String x) {
+        out().println(x);
+    }
+
+    public void println(Object x) {
+        out().println(x);
+    }
+
+    public PrintStream format(String format, Object... args) {
+        out().format(format, args);
+        return this;
+    }
+
+    public PrintStream format(Locale l, String format, Object... args) {
+        out().format(l, format, args);
+        return this;
+    }
+
+    public PrintStream append(CharSequence csq) {
+        out().append(csq);
+        return this;
+    }
+
+    public PrintStream append(CharSequence csq, int start, int end) {
+        out().append(csq, start, end);
+        return this;
+    }
+
+    public PrintStream append(char c) {
+        out().append(c);
+        return this;
+    }
+}
@@ -0,0 +1,84 @@
+package relayserver;
+
+import java.util.Properties;
+import javax.net.ssl.*;
+import common.Logger;
+
+/**
+ * Server side TLS session reuse for the relay listener, so clients that
+ * reconnect skip the full handshake. Settings from the ini file:
+ * RELAYTLSSESSIONCACHESIZE - sessions kept for resumption (default 20000).
+ * RELAYTLSSESSIONTIMEOUT - seconds a session can be resumed for (default 3600).
+ * RELAYTLSSESSIONTICKETS - Y/N, stateless session tickets (default Y). JSSE
+ * reads this once, so it is applied by ServerMain before any TLS is set up.
+ * Also counts full and resumed handshakes and times them.
+ */
+public class TlsSessions {
+
+    private static final String TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+    private static boolean ticketsApplied = false;
+
+    private final int cacheSize;
+    private final int timeout;
+    private SSLSessionContext configured; // the context the settings were last applied to
+
+    public TlsSessions(Properties props, Logger logger) {
+        cacheSize = IniProperties.getInt(props, "RELAYTLSSESSIONCACHESIZE", 20000);
+        timeout = IniProperties.getInt(props, "RELAYTLSSESSIONTIMEOUT", 3600);
+        String wanted = String.valueOf(IniProperties.getBoolean(props, "RELAYTLSSESSIONTICKETS", true));
+        if (!applyTickets(props)) {
+            // not started by ServerMain, the listener's context may be set up already
+            logger.log("RELAYTLSSESSIONTICKETS=" + wanted + " may be ignored, TLS was set up before it was read");
+        } else if (!wanted.equals(System.getProperty(TICKETS))) {
+            logger.log("RELAYTLSSESSIONTICKETS=" + wanted + " ignored, " + TICKETS + " is set to "
+                       + System.getProperty(TICKETS));
+        }
+    }
+
+    /**
+     * Set the JSSE session ticket switch from RELAYTLSSESSIONTICKETS, unless
+     * it is set on the command line. Must be called before any SSLContext or
+     * SecureSocketFactory is created, as JSSE only reads it once. Returns
+     * true if it had been applied already, by an earlier call.
+     */
+    public static synchronized boolean applyTickets(Properties props) {
+        if (ticketsApplied) {
+            return true;
+        }
+        ticketsApplied = true;
+        if (System.getProperty(TICKETS) == null) {
+            System.setProperty(TICKETS,
+                    String.valueOf(IniProperties.getBoolean(props, "RELAYTLSSESSIONTICKETS", true)));
+        }
+        return false;
+    }
+
+    /** Apply the cache settings to a session context. */
+    public synchronized void configure(SSLSessionContext ctx) {
+        if (ctx == null || ctx == configured) {
+            return;
+        }
+        ctx.setSessionCacheSize(cacheSize);
+        ctx.setSessionTimeout(timeout);
+        configured = ctx;
+    }
+
+    /**
+     * Record a completed handshake.
+     * @param startMillis when the handshake began, a session created before
+     * then has been resumed
+     */
+    public void handshakeDone(SSLSession session, long startMillis) {
+        long ms = System.currentTimeMillis() - startMillis;
+        boolean resumed = session.getCreationTime() < startMillis;
+        if (resumed) {
+            RelayMetrics.counter("tls.handshake.resumed").incrementAndGet();
+            RelayMetrics.histogram("tls.handshake.resumed.ms").record(ms);
+        } else {
+            RelayMetrics.counter("tls.handshake.full").incrementAndGet();
+            RelayMetrics.histogram("tls.handshake.full.ms").record(ms);
+        }
+        // the listener's context is only reachable through its sessions
+        configure(session.getSessionContext());
+    }
+}
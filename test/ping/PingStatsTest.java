@@ -0,0 +1,124 @@
+package ping;
+
+import java.util.Random;
+
+/**
+ * Checks of LatencyHistogram percentiles and merging, and of PingStats
+ * number parsing and merging. Exits 1 if any check fails.
+ */
+public class PingStatsTest {
+
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        histogram();
+        parseNumber();
+        merge();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void histogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        check("empty p50", 0.0, h.getPercentile(50.0), 0.0);
+        for (int x = 1 ; x <= 1000 ; x++) {
+            h.record(x / 10.0);  // 0.1 .. 100ms
+        }
+        h.record(-1.0);
+        h.record(Double.NaN);
+        check("count", 1000, h.getCount(), 0.0);
+        check("min", 0.1, h.getMin(), 0.0);
+        check("max", 100.0, h.getMax(), 0.0);
+        check("mean", 50.05, h.getMean(), 1e-9);
+        check("jitter", 0.1, h.getJitter(), 1e-9);
+        // within the 1.5% the buckets allow
+        check("p50", 50.0, h.getPercentile(50.0), 50.0 * 0.015);
+        check("p95", 95.0, h.getPercentile(95.0), 95.0 * 0.015);
+        check("p99", 99.0, h.getPercentile(99.0), 99.0 * 0.015);
+        check("p100", 100.0, h.getPercentile(100.0), 100.0 * 0.015);
+        check("p0 is min", 0.1, h.getPercentile(0.0), 0.0);
+
+        // bucketed at the top, but reported within the exact min and max
+        LatencyHistogram big = new LatencyHistogram();
+        big.record(1e9);
+        check("past the top", 1e9, big.getPercentile(50.0), 0.0);
+
+        // merged halves give the same answers as one histogram of the lot
+        Random r = new Random(1);
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int x = 0 ; x < 10000 ; x++) {
+            double ms = Math.exp(r.nextGaussian()) * 20.0;
+            all.record(ms);
+            (x % 2 == 0 ? a : b).record(ms);
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(a);
+        merged.merge(b);
+        merged.merge(new LatencyHistogram());
+        check("merged count", all.getCount(), merged.getCount(), 0.0);
+        check("merged min", all.getMin(), merged.getMin(), 0.0);
+        check("merged max", all.getMax(), merged.getMax(), 0.0);
+        check("merged mean", all.getMean(), merged.getMean(), 1e-9);
+        double[] p = { 50.0, 90.0, 99.0, 99.9 };
+        for (int x = 0 ; x < p.length ; x++) {
+            check("merged p" + p[x], all.getPercentile(p[x]), merged.getPercentile(p[x]), 0.0);
+        }
+    }
+
+    private static void parseNumber() {
+        String[] good = { "12", "0.512", " 3.25 ", "-4.5", "+7", "10.", ".5", "0" };
+        for (int x = 0 ; x < good.length ; x++) {
+            check("parse \"" + good[x] + "\"", Double.parseDouble(good[x].trim()),
+                  PingStats.parseNumber(good[x]), 1e-12);
+        }
+        String[] bad = { "", " ", "*", "!H", "<1", "10.0.0.1", "1e3", "ms", "-", "." };
+        for (int x = 0 ; x < bad.length ; x++) {
+            check("not a number \"" + bad[x] + "\"", true, Double.isNaN(PingStats.parseNumber(bad[x])));
+        }
+    }
+
+    private static void merge() {
+        PingStats hop = new PingStats(new String[] { " 1", "10.0.0.1", "1.5", "*", "2.5" }, "10.0.0.1");
+        check("hop received", 2, hop.getNumVals(), 0.0);
+        check("hop lost", 1, hop.getNumLost(), 0.0);
+        check("hop ip", "10.0.0.1", hop.getIpAddress());
+        check("hop <1", 0.5, new PingStats(new String[] { "1", "<1" }, "x").getMinVal(), 0.0);
+
+        PingStats run = new PingStats("10.0.0.1", new double[] { 4.0, 0.5 }, 2);
+        hop.merge(run);
+        check("merged received", 4, hop.getNumVals(), 0.0);
+        check("merged lost", 3, hop.getNumLost(), 0.0);
+        check("merged loss %", 42.9, hop.getLostPercent(), 0.0);
+        check("merged min", 0.5, hop.getMinVal(), 0.0);
+        check("merged max", 4.0, hop.getMaxVal(), 0.0);
+        check("merged average", 2.125, hop.getAvVal(), 0.0);
+        check("merged histogram", 4, hop.getHistogram().getCount(), 0.0);
+
+        PingStats none = new PingStats("10.0.0.2", new double[0], 4);
+        check("all lost min", 0.0, none.getMinVal(), 0.0);
+        check("all lost %", 100.0, none.getLostPercent(), 0.0);
+    }
+
+    private static void check(String what, double expected, double actual, double within) {
+        if (Math.abs(expected - actual) <= within) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, boolean expected, boolean actual) {
+        check(what, Boolean.valueOf(expected), Boolean.valueOf(actual));
+    }
+}
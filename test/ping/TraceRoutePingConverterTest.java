@@ -0,0 +1,70 @@
+package ping;
+
+import java.io.*;
+
+/**
+ * Regression check of TraceRoutePingConverter against traceroute output
+ * recorded on the platforms it is used on. Each fixture in traceroute/ is
+ * <name>.out (the output), optionally <name>.err (the error output, where
+ * unix traceroute writes its header) and <name>.expected (the ping output
+ * the converter should give). Run with the TnRCommon jar on the class path;
+ * exits 1 if any fixture doesn't match.
+ */
+public class TraceRoutePingConverterTest {
+
+    private static final String[] FIXTURES = { "linux", "solaris", "windows" };
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        for (int x = 0 ; x < FIXTURES.length ; x++) {
+            String name = FIXTURES[x];
+            String expected = new String(fixture(name + ".expected"), "UTF-8");
+            String actual = convert(name);
+            if (expected.equals(actual)) {
+                System.out.println("ok " + name);
+            } else {
+                failed++;
+                System.out.println("FAILED " + name + "\n--- expected\n" + expected + "--- actual\n" + actual);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /** Run a fixture through the converter, returning its output. */
+    static String convert(String name) throws IOException {
+        InputStream out = new ByteArrayInputStream(fixture(name + ".out"));
+        byte[] err = fixture(name + ".err");
+        TraceRoutePingConverter c = new TraceRoutePingConverter(out,
+                err == null ? null : new ByteArrayInputStream(err));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            byte[] b = new byte[256];
+            int n;
+            while ((n = c.read(b, 0, b.length)) != -1) {
+                result.write(b, 0, n);
+            }
+        } finally {
+            c.close();
+        }
+        return result.toString("UTF-8");
+    }
+
+    /** The contents of a fixture, or null if there is no such file. */
+    private static byte[] fixture(String file) throws IOException {
+        InputStream in = TraceRoutePingConverterTest.class.getResourceAsStream("traceroute/" + file);
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                bo.write(b, 0, n);
+            }
+            return bo.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
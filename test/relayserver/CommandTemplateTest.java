@@ -0,0 +1,57 @@
+package relayserver;
+
+import java.util.*;
+
+/**
+ * Checks CommandTemplate.expand: arguments split on blanks, placeholders
+ * filled in where they stand, and a value with blanks in it kept inside
+ * its argument. Exits 1 if any check fails.
+ */
+public class CommandTemplateTest {
+
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        Map values = new HashMap();
+        values.put("<DESTIP>", "10.1.2.3");
+        values.put("<SOURCEIP>", "192.168.0.1");
+        values.put("<COUNT>", "4");
+
+        check("plain", new String[] { "/bin/ping", "-c", "4", "10.1.2.3" },
+              CommandTemplate.get("/bin/ping  -c <COUNT>\t<DESTIP>").expand(values));
+        Map noSource = new HashMap(values);
+        noSource.remove("<SOURCEIP>");
+        check("inside an argument, missing left", new String[] { "tr", "-s<SOURCEIP>x", "--to=10.1.2.3:23" },
+              CommandTemplate.get("tr -s<SOURCEIP>x --to=<DESTIP>:23").expand(noSource));
+        check("two in one", new String[] { "x", "192.168.0.1-10.1.2.3" },
+              CommandTemplate.get("x <SOURCEIP>-<DESTIP>").expand(values));
+        check("unclosed", new String[] { "x", "a<b", "10.1.2.3" },
+              CommandTemplate.get("x a<b <DESTIP>").expand(values));
+
+        Map blanks = new HashMap();
+        blanks.put("<DESTIP>", "1.2.3.4 ; rm -rf /");
+        check("blanks stay in the argument", new String[] { "ping", "1.2.3.4 ; rm -rf /" },
+              CommandTemplate.get("ping <DESTIP>").expand(blanks));
+
+        CommandTemplate t = CommandTemplate.get("/usr/sbin/traceroute -n <DESTIP>");
+        check("program", "/usr/sbin/traceroute", t.getProgram());
+        check("has placeholder", Boolean.TRUE, Boolean.valueOf(t.hasPlaceholder("<DESTIP>")));
+        check("hasn't placeholder", Boolean.FALSE, Boolean.valueOf(t.hasPlaceholder("<SOURCEIP>")));
+        check("cached", Boolean.TRUE, Boolean.valueOf(t == CommandTemplate.get("/usr/sbin/traceroute -n <DESTIP>")));
+        check("empty", new String[0], CommandTemplate.get("  ").expand(values));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void check(String what, String[] expected, String[] actual) {
+        check(what, Arrays.asList(expected), Arrays.asList(actual));
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
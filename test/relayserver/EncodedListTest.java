@@ -0,0 +1,100 @@
+package relayserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Checks that EncodedList serves the same bytes as the lines it was built
+ * from, whole, by range, by page and line by line, including lines that
+ * cross a chunk boundary. Exits 1 if any check fails.
+ */
+public class EncodedListTest {
+
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        List lines = new ArrayList();
+        for (int x = 0 ; x < 5000 ; x++) {
+            // about 30 bytes a line, so several 64k chunks
+            lines.add("device" + x + "\tDOMAIN" + (x % 7) + "\t10.0." + (x / 256) + "." + (x % 256));
+        }
+        lines.add("");
+        lines.add("a long line " + new String(new char[70000]).replace('\0', 'x'));
+        lines.add("last");
+        EncodedList e = new EncodedList(lines);
+
+        check("line count", lines.size(), e.lineCount());
+        check("byte count", text(lines, 0, lines.size()).length(), e.byteCount());
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        e.writeTo(all);
+        check("whole file", text(lines, 0, lines.size()), all.toString());
+
+        int[][] ranges = { { 0, 1 }, { 0, 0 }, { 2000, 2500 }, { 4999, 4 }, { 5001, 2 }, { 5002, 10 }, { 9000, 5 } };
+        for (int x = 0 ; x < ranges.length ; x++) {
+            int first = ranges[x][0];
+            int count = ranges[x][1];
+            ByteArrayOutputStream bo = new ByteArrayOutputStream();
+            int n = e.writeLines(bo, first, count);
+            int end = Math.min(first + count, lines.size());
+            check("lines " + first + "+" + count, Math.max(0, end - first), n);
+            check("lines " + first + "+" + count + " text", text(lines, first, end), bo.toString());
+            check("buffers " + first + "+" + count, text(lines, first, end), text(e.buffers(first, count)));
+        }
+
+        ByteArrayOutputStream pages = new ByteArrayOutputStream();
+        int page = 0;
+        while (e.writePage(pages, page, 333) > 0) {
+            page++;
+        }
+        check("pages", text(lines, 0, lines.size()), pages.toString());
+        check("page count", (lines.size() + 332) / 333, page);
+
+        boolean same = true;
+        Iterator it = e.iterator();
+        for (int x = 0 ; x < lines.size() ; x++) {
+            same &= it.hasNext() && lines.get(x).equals(it.next()) && lines.get(x).equals(e.line(x));
+        }
+        check("iterator", true, same && !it.hasNext());
+
+        try {
+            e.writeLines(new ByteArrayOutputStream(), -1, 5);
+            check("negative first rejected", true, false);
+        } catch (IndexOutOfBoundsException ex) {
+            check("negative first rejected", true, true);
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static String text(List lines, int from, int to) {
+        StringBuffer sb = new StringBuffer();
+        for (int x = from ; x < to ; x++) {
+            sb.append(lines.get(x)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String text(ByteBuffer[] bufs) {
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        for (int x = 0 ; x < bufs.length ; x++) {
+            byte[] b = new byte[bufs[x].remaining()];
+            bufs[x].get(b);
+            bo.write(b, 0, b.length);
+        }
+        return bo.toString();
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, long expected, long actual) {
+        check(what, new Long(expected), new Long(actual));
+    }
+}
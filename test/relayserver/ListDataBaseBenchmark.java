@@ -0,0 +1,117 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Clients per second served a 100k line list, walking the Strings and
+ * encoding each line as ListDataBase clients did, against writing the
+ * shared EncodedList chunks whole and a page at a time.
+ * Arguments: [client threads, default 8] [seconds per run, default 5].
+ */
+public class ListDataBaseBenchmark {
+
+    private static final int LINES = 100000;
+    private static final int PAGE = 1000;
+
+    /** One way of serving the list to a client. */
+    private interface Client {
+        public void serve(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Copies what it is given into a socket sized buffer and throws it away,
+     * like the write to a fast client.
+     */
+    private static class Sink extends OutputStream {
+        private final byte[] buf = new byte[65536];
+        long bytes;
+
+        public void write(int b) {
+            buf[(int) (bytes++ % buf.length)] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                int at = (int) (bytes % buf.length);
+                int n = Math.min(len, buf.length - at);
+                System.arraycopy(b, off, buf, at, n);
+                off += n;
+                len -= n;
+                bytes += n;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        final List lines = new ArrayList(LINES);
+        for (int x = 0 ; x < LINES ; x++) {
+            lines.add("device" + x + "\tDOMAIN" + (x % 50) + "\t10." + (x >> 16) + "." + ((x >> 8) & 255) + "." + (x & 255)
+                      + "\tCISCO\tRouter in rack " + (x % 40));
+        }
+        long t = System.currentTimeMillis();
+        final EncodedList encoded = new EncodedList(lines);
+        System.out.println(LINES + " lines, " + encoded.byteCount() + " bytes, encoded in "
+                           + (System.currentTimeMillis() - t) + "ms");
+
+        run("strings", threads, seconds, new Client() {
+            public void serve(OutputStream out) throws IOException {
+                for (Iterator i = lines.iterator(); i.hasNext();) {
+                    out.write((((String) i.next()) + "\n").getBytes());
+                }
+            }
+        });
+        run("encoded", threads, seconds, new Client() {
+            public void serve(OutputStream out) throws IOException {
+                encoded.writeTo(out);
+            }
+        });
+        run("paged", threads, seconds, new Client() {
+            public void serve(OutputStream out) throws IOException {
+                for (int page = 0 ; encoded.writePage(out, page, PAGE) > 0 ; page++) {
+                }
+            }
+        });
+    }
+
+    /** Serve clients from several threads for a while and report the rate. */
+    private static void run(String name, int threads, long seconds, final Client client) throws Exception {
+        final long end = System.currentTimeMillis() + seconds * 1000;
+        final long[] served = new long[threads];
+        final long[] bytes = new long[threads];
+        Thread[] t = new Thread[threads];
+        for (int x = 0 ; x < threads ; x++) {
+            final int me = x;
+            t[x] = new Thread() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            Sink sink = new Sink();
+                            client.serve(sink);
+                            served[me]++;
+                            bytes[me] += sink.bytes;
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int x = 0 ; x < threads ; x++) {
+            t[x].start();
+        }
+        long total = 0;
+        long totalBytes = 0;
+        for (int x = 0 ; x < threads ; x++) {
+            t[x].join();
+            total += served[x];
+            totalBytes += bytes[x];
+        }
+        double secs = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.println(name + ": " + Math.round(total / secs) + " clients/s, "
+                           + Math.round(totalBytes / secs / 1048576) + " MB/s");
+    }
+}
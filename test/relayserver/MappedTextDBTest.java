@@ -0,0 +1,206 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks MappedTextDB: a snapshot written and mapped again answers the
+ * lookups, a repeated domain or device name resolves as the heap database
+ * does, and a stale or damaged snapshot is refused. Works in a temporary
+ * directory. Exits 1 if any check fails.
+ */
+public class MappedTextDBTest {
+
+    private static int failed = 0;
+
+    public static void main(String[] args) throws IOException {
+        File dir = File.createTempFile("mappedtextdb", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            roundTrip(dir);
+            duplicates(dir);
+            refused(dir);
+        } finally {
+            File[] files = dir.listFiles();
+            for (int x = 0 ; files != null && x < files.length ; x++) {
+                files[x].delete();
+            }
+            dir.delete();
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void roundTrip(File dir) throws IOException {
+        File src = text(dir, "round.txt", "");
+        List domLines = new ArrayList();
+        List devLines = new ArrayList();
+        domLines.add("A\t1.1.1.1\t2.2.2.2\tLOCAL\t3.3.3.3 VCMS");
+        devLines.add(Arrays.asList(new String[] {
+            "r1.a\t10.0.0.1\t3.3.3.3\tpriv\tY TELNET", "r2.a\t10.0.0.2\t3.3.3.3\tpriv\tN SSH" }));
+        domLines.add("B\t1.1.1.1\t2.2.2.2\tB\t3.3.3.3\tIPVPN");
+        devLines.add(new ArrayList());
+        domLines.add("C\t1.1.1.1\t2.2.2.2\tC\t3.3.3.3 VCMS");
+        devLines.add(Arrays.asList(new String[] { "rx.c\t10.0.0.1\t3.3.3.3\tpriv\tY\tTELNET" }));
+
+        File bin = MappedTextDB.nextGeneration(src);
+        check("first generation", src.getName() + ".1.bin", bin.getName());
+        MappedTextDB.write(bin, src.lastModified(), src.length(), domLines, devLines);
+        MappedTextDB m = MappedTextDB.open(bin, src);
+        check("opened", true, m != null);
+        if (m == null) {
+            return;
+        }
+        check("latest", bin, MappedTextDB.openLatest(src).getFile());
+        check("next generation", src.getName() + ".2.bin", MappedTextDB.nextGeneration(src).getName());
+        check("domains", 3, m.domainCount());
+        check("domain line", domLines.get(1), m.domainLine(1));
+        check("domain index", 2, m.domainIndex("C"));
+        check("no domain", -1, m.domainIndex("D"));
+        check("first device", 2, m.firstDevice(2));
+        check("device count", 0, m.deviceCount(1));
+        int r2 = m.deviceIndex("r2.a");
+        check("device index", 1, r2);
+        check("device line", "r2.a\t10.0.0.2\t3.3.3.3\tpriv\tN SSH", m.deviceLine(r2));
+        check("device domain", 0, m.deviceDomain(r2));
+        check("no device", -1, m.deviceIndex("r3.a"));
+        check("by ip", "[0, 2]", sorted(m.devicesByIp("10.0.0.1")));
+        check("no ip", "[]", sorted(m.devicesByIp("10.0.0.9")));
+        check("prefix", "[1]", Arrays.toString(m.devicesWithPrefix("r2")));
+        check("prefix in name order", "[0, 1, 2]", Arrays.toString(m.devicesWithPrefix("")));
+        check("prefix none", "[]", Arrays.toString(m.devicesWithPrefix("s")));
+        check("non-ascii", -1, m.deviceIndex("r\u00e9.a"));
+    }
+
+    private static void duplicates(File dir) throws IOException {
+        File src = text(dir, "dup.txt",
+                "DOMAIN\tD1\t1.1.1.1\t2.2.2.2\tD1\t3.3.3.3 VCMS\n"
+                + "DEVICE\ta.d1\t10.0.0.1\t1.1.1.1\tp\tY TELNET\n"
+                + "DEVICE\tdup\t10.0.0.2\t1.1.1.1\tp\tY TELNET\n"
+                + "DOMAIN\tD2\t1.1.1.1\t2.2.2.2\tD2\t3.3.3.3 VCMS\n"
+                + "DEVICE\tdup\t10.0.0.3\t1.1.1.1\tp\tY TELNET\n"
+                + "DOMAIN\tD1\t1.1.1.1\t2.2.2.2\tD1\t3.3.3.3 OTHER\n"
+                + "DEVICE\tb.d1\t10.0.0.4\t1.1.1.1\tp\tY TELNET\n");
+        TextDataBase heap = new TextDataBase(src.getPath(), false);
+        TextDataBase mapped = new TextDataBase(src.getPath(), true);
+        try {
+            check("compiled", true, MappedTextDB.openLatest(src) != null);
+            TextDataBase[] dbs = { heap, mapped };
+            for (int x = 0 ; x < dbs.length ; x++) {
+                String mode = x == 0 ? "heap " : "mapped ";
+                TextDataBase db = dbs[x];
+                check(mode + "replaced domain's device", "10.0.0.1", db.findDevice("a.d1").getIp());
+                check(mode + "last device wins", "10.0.0.3", db.findDevice("dup").getIp());
+                check(mode + "last domain wins", "OTHER", db.findDomain("D1").getPlatform());
+                check(mode + "domain's devices", 1, db.deviceList("D1").size());
+                check(mode + "domains", 2, db.domainList().size());
+                int n = 0;
+                for (Iterator i = db.domains(); i.hasNext(); i.next()) {
+                    n++;
+                }
+                check(mode + "domain lines", 2, n);
+                check(mode + "by platform", 1, db.domainsByPlatform("vcms").size());
+                check(mode + "prefix", 3, db.devicesWithPrefix("").size());
+                check(mode + "replaced device by ip", 1, db.devicesByIp("10.0.0.2").size());
+            }
+        } finally {
+            heap.close();
+            mapped.close();
+        }
+    }
+
+    private static void refused(File dir) throws IOException {
+        File src = text(dir, "bad.txt", "DOMAIN\tA\t1.1.1.1\t2.2.2.2\tA\t3.3.3.3 VCMS\n");
+        List domLines = Collections.singletonList("A\t1.1.1.1\t2.2.2.2\tA\t3.3.3.3 VCMS");
+        List devLines = Collections.singletonList(
+                Collections.singletonList("r1.a\t10.0.0.1\t3.3.3.3\tpriv\tY TELNET"));
+        File bin = new File(dir, "bad.bin");
+        MappedTextDB.write(bin, src.lastModified(), src.length(), domLines, devLines);
+        check("good", true, MappedTextDB.open(bin, src) != null);
+        check("missing text file", true, MappedTextDB.open(bin, new File(dir, "none.txt")) == null);
+        check("missing snapshot", true, MappedTextDB.open(new File(dir, "none.bin"), src) == null);
+
+        File stale = new File(dir, "stale.bin");
+        MappedTextDB.write(stale, src.lastModified(), src.length() + 1, domLines, devLines);
+        check("stale length", true, MappedTextDB.open(stale, src) == null);
+        MappedTextDB.write(stale, src.lastModified() - 2000, src.length(), domLines, devLines);
+        check("stale date", true, MappedTextDB.open(stale, src) == null);
+
+        byte[] good = read(bin);
+        check("bad magic", true, damaged(bin, src, good, 0, 0) == null);
+        check("old version", true, damaged(bin, src, good, 7, 1) == null);
+        check("domain count", true, damaged(bin, src, good, 27, 9) == null);
+        check("device table", true, damaged(bin, src, good, 38, 0x7f) == null);
+        check("string area", true, damaged(bin, src, good, 71, 0xff) == null);
+        check("string ref", true, damaged(bin, src, good, 80, 0x7f) == null);
+        byte[] cut = new byte[good.length - 5];
+        System.arraycopy(good, 0, cut, 0, cut.length);
+        write(bin, cut);
+        check("truncated", true, MappedTextDB.open(bin, src) == null);
+        cut = new byte[40];
+        System.arraycopy(good, 0, cut, 0, cut.length);
+        write(bin, cut);
+        check("no header", true, MappedTextDB.open(bin, src) == null);
+    }
+
+    /** Write the good snapshot with one byte changed and open it. */
+    private static MappedTextDB damaged(File bin, File src, byte[] good, int at, int value) throws IOException {
+        byte[] b = (byte[]) good.clone();
+        b[at] = (byte) value;
+        write(bin, b);
+        return MappedTextDB.open(bin, src);
+    }
+
+    private static File text(File dir, String name, String content) throws IOException {
+        File f = new File(dir, name);
+        write(f, content.getBytes("UTF-8"));
+        return f;
+    }
+
+    private static void write(File f, byte[] b) throws IOException {
+        long modified = f.lastModified();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(b);
+        } finally {
+            out.close();
+        }
+        if (modified != 0) {
+            f.setLastModified(modified);
+        }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private static String sorted(int[] a) {
+        int[] b = (int[]) a.clone();
+        Arrays.sort(b);
+        return Arrays.toString(b);
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, boolean expected, boolean actual) {
+        check(what, Boolean.valueOf(expected), Boolean.valueOf(actual));
+    }
+
+    private static void check(String what, int expected, int actual) {
+        check(what, new Integer(expected), new Integer(actual));
+    }
+}
@@ -0,0 +1,84 @@
+package relayserver;
+
+import java.util.*;
+
+/**
+ * Checks PatchSourceSet: single addresses, IPv4 and IPv6 ranges, entries
+ * that only match as written, bad prefixes being ignored, and the address
+ * parsers. Exits 1 if any check fails.
+ */
+public class PatchSourceSetTest {
+
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        PatchSourceSet set = new PatchSourceSet(Arrays.asList(new String[] {
+            " 10.0.0.1 ", "192.168.0.0/16", "172.16.5.0/24", "0.0.0.0/0 ",
+            "2001:db8::/32", "fe80::1", "::ffff:10.9.9.9",
+            "relay1.example.com", "", "10.5.0.0/-1", "10.6.0.0/33", "10.7.0.0/x",
+            "2001:db9::/-8", "2001:dba::/129", "host/24"
+        }));
+        check("entries kept as written", 15, set.getEntries().size());
+
+        PatchSourceSet narrow = new PatchSourceSet(Arrays.asList(new String[] {
+            "10.0.0.1", "192.168.0.0/16", "2001:db8::/32", "fe80::1", "::ffff:10.9.9.9",
+            "relay1.example.com", "10.5.0.0/-1", "10.6.0.0/33", "2001:db9::/-8", "2001:dba::/129"
+        }));
+        String[] in = { "10.0.0.1", " 10.0.0.1", "192.168.255.1", "2001:db8:1::5", "2001:DB8::",
+                        "fe80::1", "fe80:0:0:0:0:0:0:1", "::ffff:a09:909", "relay1.example.com" };
+        for (int x = 0 ; x < in.length ; x++) {
+            check("allows " + in[x], true, narrow.contains(in[x]));
+        }
+        String[] out = { "10.0.0.2", "192.169.0.1", "10.5.0.1", "10.6.0.1", "2001:db9::1",
+                         "2001:dba::1", "fe80::2", "relay2.example.com", "10.0.0.1/32", "", null };
+        for (int x = 0 ; x < out.length ; x++) {
+            check("refuses " + out[x], false, narrow.contains(out[x]));
+        }
+        check("0.0.0.0/0 allows any IPv4", true, set.contains("8.8.8.8"));
+        check("172.16.5.0/24", true, set.contains("172.16.5.77"));
+        check("empty set", false, PatchSourceSet.EMPTY.contains("10.0.0.1"));
+
+        check("parse v4", 0x0a000001L, PatchSourceSet.parseIPv4(" 10.0.0.1 "));
+        String[] notV4 = { "10.0.0", "10.0.0.256", "10..0.1", "1.2.3.4.5", "a.b.c.d", "" };
+        for (int x = 0 ; x < notV4.length ; x++) {
+            check("not v4 " + notV4[x], -1L, PatchSourceSet.parseIPv4(notV4[x]));
+        }
+        check("parse v6", "20010db8000000000000000000000001", hex(PatchSourceSet.parseIPv6("2001:db8::1")));
+        check("parse ::", "00000000000000000000000000000000", hex(PatchSourceSet.parseIPv6("::")));
+        check("parse v4 tail", "00000000000000000000ffff0a000001", hex(PatchSourceSet.parseIPv6("::ffff:10.0.0.1")));
+        String[] notV6 = { ":1", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", "1:2:3:4:5:6:7:8::",
+                           "g::1", "1:", "::1.2.3.4:5", "www.example.com" };
+        for (int x = 0 ; x < notV6.length ; x++) {
+            check("not v6 " + notV6[x], "null", hex(PatchSourceSet.parseIPv6(notV6[x])));
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static String hex(byte[] b) {
+        if (b == null) {
+            return "null";
+        }
+        StringBuffer sb = new StringBuffer();
+        for (int x = 0 ; x < b.length ; x++) {
+            sb.append(Integer.toHexString(0x100 | (b[x] & 0xff)).substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            System.out.println("ok " + what);
+        } else {
+            failed++;
+            System.out.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, boolean expected, boolean actual) {
+        check(what, Boolean.valueOf(expected), Boolean.valueOf(actual));
+    }
+
+    private static void check(String what, long expected, long actual) {
+        check(what, new Long(expected), new Long(actual));
+    }
+}
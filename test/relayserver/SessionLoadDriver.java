@@ -0,0 +1,153 @@
+package relayserver;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * Load driver for sessions per GB: opens idle relay sessions to a running
+ * relay server and reports how much the server process grew. The sessions
+ * are TELNET requests to a target run by the driver, which accepts and
+ * holds the connections without a thread each, so all of the memory
+ * measured is the server's. Run it against the server started with
+ * THREADMODE=PLATFORM and again with THREADMODE=VIRTUAL (or RELAYENGINE=NIO)
+ * and compare. The server's resident size is read from /proc, so the
+ * server pid is needed and this only measures on Linux.
+ * Arguments: relay host, relay port, server pid, sessions [default 1000],
+ * steps [default 4] (the sessions are opened in that many steps, with the
+ * server's size printed after each).
+ */
+public class SessionLoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: SessionLoadDriver host port pid [sessions] [steps]");
+            System.exit(2);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String pid = args[2];
+        int sessions = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int steps = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        int target = startTarget();
+        SSLSocketFactory sf = trustAll().getSocketFactory();
+        List open = new ArrayList();
+        // one session first, so class loading and pools are not counted
+        open.add(session(sf, host, port, target));
+        long base = residentKb(pid);
+        System.out.println("server " + base + "kB with 1 session");
+        int failed = 0;
+        for (int step = 1 ; step <= steps ; step++) {
+            int upTo = sessions * step / steps;
+            while (open.size() - 1 + failed < upTo) {
+                try {
+                    open.add(session(sf, host, port, target));
+                } catch (IOException ex) {
+                    failed++;
+                }
+            }
+            Thread.sleep(2000); // let the server settle
+            long kb = residentKb(pid);
+            int n = open.size() - 1;
+            System.out.println(n + " sessions (" + failed + " refused): server " + kb + "kB, "
+                               + (n == 0 || kb <= base ? "-" : String.valueOf(Math.round(n * 1048576.0 / (kb - base))))
+                               + " sessions/GB");
+        }
+        for (int x = 0 ; x < open.size() ; x++) {
+            common.IoUtil.close((Socket) open.get(x));
+        }
+        System.exit(0);
+    }
+
+    /** Open a session and wait for the server to say go ahead. */
+    private static Socket session(SSLSocketFactory sf, String host, int port, int target) throws IOException {
+        SSLSocket s = (SSLSocket) sf.createSocket(host, port);
+        try {
+            s.setSoTimeout(30000);
+            OutputStream out = s.getOutputStream();
+            out.write(("TELNET 127.0.0.1 127.0.0.1 " + target + "\n").getBytes());
+            out.flush();
+            InputStream in = s.getInputStream();
+            StringBuffer reply = new StringBuffer();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                reply.append((char) c);
+            }
+            if (reply.length() == 0 || reply.charAt(0) == 'N') {
+                throw new IOException("Session refused: " + reply);
+            }
+            s.setSoTimeout(0);
+            return s;
+        } catch (IOException ex) {
+            common.IoUtil.close(s);
+            throw ex;
+        }
+    }
+
+    /** A target that accepts connections and holds them, on one thread. */
+    private static int startTarget() throws IOException {
+        final Selector sel = Selector.open();
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1000);
+        ssc.configureBlocking(false);
+        ssc.register(sel, SelectionKey.OP_ACCEPT);
+        Thread t = new Thread("SessionLoadTarget") {
+            public void run() {
+                List held = new ArrayList();
+                try {
+                    while (true) {
+                        sel.select();
+                        sel.selectedKeys().clear();
+                        SocketChannel sc;
+                        while ((sc = ssc.accept()) != null) {
+                            held.add(sc);
+                        }
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return ssc.socket().getLocalPort();
+    }
+
+    /** The relay server's certificate is not checked, this is only a load. */
+    private static SSLContext trustAll() throws Exception {
+        SSLContext c = SSLContext.getInstance("TLS");
+        c.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String type) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String type) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+        return c;
+    }
+
+    /** The resident size of a process, from /proc/<pid>/status. */
+    private static long residentKb(String pid) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    StringTokenizer st = new StringTokenizer(line.substring(6));
+                    return Long.parseLong(st.nextToken());
+                }
+            }
+        } finally {
+            br.close();
+        }
+        throw new IOException("No VmRSS for process " + pid);
+    }
+}
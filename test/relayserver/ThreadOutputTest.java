@@ -0,0 +1,146 @@
+package relayserver;
+
+import java.io.*;
+import java.util.*;
+import common.buffwriter.BuffWriterStream;
+
+/**
+ * Checks ThreadOutput: threads capturing at once each get only their own
+ * lines, threads they start inherit the capture until it ends, and output
+ * of threads without a capture goes to the real System.out.
+ * Exits 1 if any check fails.
+ */
+public class ThreadOutputTest {
+
+    private static final int LINES = 2000;
+
+    private static PrintStream console;
+    private static int failed = 0;
+
+    /** Keeps what it is given. */
+    private static class Sink extends BuffWriterStream {
+        final StringBuffer text = new StringBuffer();
+
+        public void write(String s) {
+            text.append(s);
+        }
+
+        public void writeln(String s) {
+            text.append(s).append('\n');
+        }
+
+        public void writeEnd() {
+        }
+
+        public int read() {
+            return -1;
+        }
+
+        public void run() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        console = System.out;
+        ByteArrayOutputStream realBytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(realBytes, true));
+        ThreadOutput.install();
+        ThreadOutput.install();
+
+        final Sink[] sinks = { new Sink(), new Sink() };
+        final Sink inherited = new Sink();
+        Thread[] t = new Thread[sinks.length];
+        for (int x = 0 ; x < t.length ; x++) {
+            final int me = x;
+            t[x] = new Thread() {
+                public void run() {
+                    ThreadOutput.begin(sinks[me]);
+                    try {
+                        for (int y = 0 ; y < LINES ; y++) {
+                            System.out.println("thread " + me + " line " + y);
+                            if (y % 100 == 0) {
+                                Thread.yield();
+                            }
+                        }
+                        System.out.print("thread " + me + " unfinished");
+                    } finally {
+                        ThreadOutput.end();
+                    }
+                    System.out.println("thread " + me + " after end");
+                }
+            };
+        }
+        for (int x = 0 ; x < t.length ; x++) {
+            t[x].start();
+        }
+        System.out.println("main line");
+        for (int x = 0 ; x < t.length ; x++) {
+            t[x].join();
+        }
+
+        // a started thread prints to its parent's capture, until that ends
+        final Object go = new Object();
+        final boolean[] ended = new boolean[1];
+        ThreadOutput.begin(inherited);
+        Thread child = new Thread() {
+            public void run() {
+                System.out.println("child during");
+                synchronized (go) {
+                    while (!ended[0]) {
+                        try {
+                            go.wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                }
+                System.out.println("child after");
+            }
+        };
+        child.start();
+        while (inherited.text.length() == 0) {
+            Thread.sleep(10);
+        }
+        ThreadOutput.end();
+        synchronized (go) {
+            ended[0] = true;
+            go.notifyAll();
+        }
+        child.join();
+        System.out.flush();
+        System.setOut(console);
+
+        for (int x = 0 ; x < sinks.length ; x++) {
+            StringBuffer expected = new StringBuffer();
+            for (int y = 0 ; y < LINES ; y++) {
+                expected.append("thread " + x + " line " + y + "\n");
+            }
+            expected.append("thread " + x + " unfinished");
+            check("thread " + x + " only its own lines", expected.toString(), sinks[x].text.toString());
+        }
+        check("inherited", "child during\n", inherited.text.toString());
+        List real = Arrays.asList(realBytes.toString().split("\n"));
+        check("real lines", 4, real.size());
+        check("main to real", true, real.contains("main line"));
+        check("after end to real", true, real.contains("thread 0 after end") && real.contains("thread 1 after end"));
+        check("child after end to real", true, real.contains("child after"));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void check(String what, Object expected, Object actual) {
+        if (expected.equals(actual)) {
+            console.println("ok " + what);
+        } else {
+            failed++;
+            console.println("FAILED " + what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, boolean expected, boolean actual) {
+        check(what, Boolean.valueOf(expected), Boolean.valueOf(actual));
+    }
+
+    private static void check(String what, int expected, int actual) {
+        check(what, new Integer(expected), new Integer(actual));
+    }
+}